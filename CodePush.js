@@ -52,7 +52,9 @@ async function checkForUpdate(
     queryPackage = localPackage;
   } else {
     queryPackage = { appVersion: config.appVersion };
-    if (config.packageHash) {
+    // Android reports isBinaryDiffBase = false until it has verified that diff updates can be
+    // applied to the binary's contents, so that the server sends a full update meanwhile.
+    if (config.packageHash && config.isBinaryDiffBase !== false) {
       queryPackage.packageHash = config.packageHash;
     }
   }
@@ -23,3 +23,6 @@
 
 # Can't find referenced class org.bouncycastle.**
 -dontwarn com.nimbusds.jose.**
+
+# zstd-jni is only present in apps that install zstd packages.
+-dontwarn com.github.luben.zstd.**
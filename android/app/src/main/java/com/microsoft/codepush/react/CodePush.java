@@ -4,6 +4,7 @@ import android.content.Context;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.content.res.Resources;
+import android.os.Process;
 
 import com.facebook.react.ReactHost;
 import com.facebook.react.ReactInstanceManager;
@@ -17,8 +18,12 @@ import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class CodePush implements ReactPackage {
     private static final Object LOCK = new Object();
@@ -37,8 +42,27 @@ public class CodePush implements ReactPackage {
     private static boolean sIsRunningBinaryVersion = false;
     private static boolean sNeedToReportRollback = false;
     private static boolean sTestConfigurationFlag = false;
+    private static final AtomicBoolean sIsVerifyingBinaryPackage = new AtomicBoolean();
     private static String sAppVersion = null;
 
+    // Download tuning, see setDownloadSegmentation.
+    private static int sDownloadSegmentCount = 1;
+    private static long sMinDownloadSegmentSize = 1024 * 1024;
+    private static CodePushRetryPolicy sRetryPolicy = new CodePushExponentialBackoffRetryPolicy();
+    private static CodePushHttpTransport sHttpTransport = new CodePushUrlConnectionTransport();
+    private static boolean sCompressedTransferEnabled = false;
+    private static boolean sStreamingInstallEnabled = false;
+    private static boolean sParallelHashingEnabled = false;
+    private static boolean sHardLinkingEnabled = false;
+    private static boolean sParallelUnzipEnabled = false;
+    private static boolean sUnchangedFileReuseEnabled = false;
+    private static boolean sFastExtractionEnabled = false;
+    private static boolean sRestoreFileTimesEnabled = true;
+    private static int sMaxRetainedPackageCount = 0;
+    private static long sMaxRetainedPackageBytes = Long.MAX_VALUE;
+    private static boolean sFileDeduplicationEnabled = false;
+    private static long sStorageQuota = 0;
+
     private boolean mDidUpdate = false;
 
     private String mAssetsBundleFileName;
@@ -47,6 +71,7 @@ public class CodePush implements ReactPackage {
     private CodePushUpdateManager mUpdateManager;
     private CodePushTelemetryManager mTelemetryManager;
     private SettingsManager mSettingsManager;
+    private volatile FutureTask<Void> mRollbackCleanup;
 
     // Config properties.
     private String mDeploymentKey;
@@ -284,6 +309,12 @@ public class CodePush implements ReactPackage {
         // the app was just freshly updated.
         mDidUpdate = false;
 
+        String rolledBackPackageHash = mUpdateManager.getRolledBackPackageHash();
+        if (rolledBackPackageHash != null) {
+            // The process died before the cleanup of a rollback was done.
+            finishRollbackInBackground(rolledBackPackageHash, null);
+        }
+
         JSONObject pendingUpdate = mSettingsManager.getPendingUpdate();
         if (pendingUpdate != null) {
             JSONObject packageMetadata = null;
@@ -303,12 +334,15 @@ public class CodePush implements ReactPackage {
 
             try {
                 boolean updateIsLoading = pendingUpdate.getBoolean(CodePushConstants.PENDING_UPDATE_IS_LOADING_KEY);
-                if (updateIsLoading) {
+                if (updateIsLoading && pendingUpdate.getString(CodePushConstants.PENDING_UPDATE_HASH_KEY).equals(rolledBackPackageHash)) {
+                    // The update was rolled back already, rolling back again would discard the previous package.
+                    CodePushUtils.log("Update was already rolled back, finishing its cleanup.");
+                } else if (updateIsLoading) {
                     // Pending update was initialized, but notifyApplicationReady was not called.
                     // Therefore, deduce that it is a broken update and rollback.
                     CodePushUtils.log("Update did not finish loading the last time, rolling back to a previous version.");
                     sNeedToReportRollback = true;
-                    rollbackPackage();
+                    rollbackPackage(packageMetadata);
                 } else {
                     // There is in fact a new update running for the first
                     // time, so update the local state to ensure the client knows.
@@ -338,6 +372,42 @@ public class CodePush implements ReactPackage {
         return sIsRunningBinaryVersion;
     }
 
+    // Returns the package diff updates apply to while no CodePush package is installed, or null
+    // if one is. That includes an update installed for the next restart or resume while the
+    // binary is still running, as it is the package JS reports and later updates are diffs against.
+    CodePushBinaryPackage getBinaryPackage() {
+        return mUpdateManager.getCurrentPackageFolderPath() == null ? new CodePushBinaryPackage(mContext) : null;
+    }
+
+    // Returns whether diff updates can be applied to the binary with the given hash, i.e. whether
+    // the APK still holds the files of its manifest unchanged. Hashing them takes a while, so it is
+    // done once per binary in the background, and the binary is not offered as a diff base until
+    // it has been verified. The server then sends full updates instead.
+    boolean isBinaryDiffBase(final String binaryHash) {
+        Boolean isVerified = mSettingsManager.getBinaryDiffBaseVerification(binaryHash);
+        if (isVerified != null) {
+            return isVerified;
+        }
+
+        if (sIsVerifyingBinaryPackage.compareAndSet(false, true)) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    try {
+                        mSettingsManager.saveBinaryDiffBaseVerification(binaryHash, new CodePushBinaryPackage(mContext).verifyFiles());
+                    } catch (IOException e) {
+                        // Checked again next time.
+                        CodePushUtils.log("Unable to verify the files of the binary " + e.getMessage());
+                    } finally {
+                        sIsVerifyingBinaryPackage.set(false);
+                    }
+                }
+            }, "CodePushBinaryVerification").start();
+        }
+        return false;
+    }
+
     private boolean isPackageBundleLatest(JSONObject packageMetadata) {
         try {
             Long binaryModifiedDateDuringPackageInstall = null;
@@ -368,11 +438,260 @@ public class CodePush implements ReactPackage {
         sAppVersion = appVersionOverride;
     }
 
-    private void rollbackPackage() {
-        JSONObject failedPackage = mUpdateManager.getCurrentPackage();
-        mSettingsManager.saveFailedUpdate(failedPackage);
-        mUpdateManager.rollbackPackage();
-        mSettingsManager.removePendingUpdate();
+    // Only switches back to the previous package before the bundle is chosen, the failed update
+    // is recorded and its package removed in the background.
+    private void rollbackPackage(JSONObject failedPackage) {
+        String failedPackageHash = mUpdateManager.rollbackPackage();
+        finishRollbackInBackground(failedPackageHash, failedPackage);
+    }
+
+    // Records the failed update, drops its pending update and removes its package off the main
+    // thread. Until that is done, codepush.json keeps the failed package hash, so that the next
+    // launch finishes the work if the process dies first. A cleanup started while an earlier one
+    // is still running waits for it, so that every rollback is recorded, in order.
+    private void finishRollbackInBackground(final String failedPackageHash, final JSONObject failedPackage) {
+        if (failedPackageHash == null) {
+            return;
+        }
+
+        final FutureTask<Void> previousRollbackCleanup = mRollbackCleanup;
+        FutureTask<Void> rollbackCleanup = new FutureTask<>(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                awaitRollbackCleanup(previousRollbackCleanup);
+                JSONObject failedUpdate = failedPackage != null ? failedPackage : mUpdateManager.getPackage(failedPackageHash);
+                if (failedUpdate == null) {
+                    failedUpdate = new JSONObject();
+                    CodePushUtils.setJSONValueForKey(failedUpdate, CodePushConstants.PACKAGE_HASH_KEY, failedPackageHash);
+                }
+                mSettingsManager.saveFailedUpdate(failedUpdate);
+
+                JSONObject pendingUpdate = mSettingsManager.getPendingUpdate();
+                if (pendingUpdate != null && failedPackageHash.equals(pendingUpdate.optString(CodePushConstants.PENDING_UPDATE_HASH_KEY, null))) {
+                    mSettingsManager.removePendingUpdate();
+                }
+                mUpdateManager.finishRollback(failedPackageHash);
+            }
+        }, null);
+        mRollbackCleanup = rollbackCleanup;
+        new Thread(rollbackCleanup, "CodePushRollbackCleanup").start();
+    }
+
+    // Blocks until the failed update of the last rollback is recorded, for callers that read or
+    // write the failed updates.
+    void awaitRollbackCleanup() {
+        awaitRollbackCleanup(mRollbackCleanup);
+    }
+
+    private static void awaitRollbackCleanup(FutureTask<Void> rollbackCleanup) {
+        if (rollbackCleanup == null) {
+            return;
+        }
+
+        try {
+            rollbackCleanup.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            CodePushUtils.log("Unable to finish the rollback " + e.getCause().getMessage());
+        }
+    }
+
+    /**
+     * Enables downloading update packages as several byte ranges in parallel.
+     * A segment count of 1 (the default) keeps the single stream download. Packages are only
+     * split when the server supports Range requests, and never into segments smaller than
+     * minSegmentSize bytes.
+     */
+    public static void setDownloadSegmentation(int segmentCount, long minSegmentSize) {
+        sDownloadSegmentCount = Math.max(1, segmentCount);
+        sMinDownloadSegmentSize = Math.max(1, minSegmentSize);
+    }
+
+    static int getDownloadSegmentCount() {
+        return sDownloadSegmentCount;
+    }
+
+    static long getMinDownloadSegmentSize() {
+        return sMinDownloadSegmentSize;
+    }
+
+    /**
+     * Replaces the policy deciding which download errors are retried, how long to wait between
+     * attempts and the timeouts of each attempt.
+     */
+    public static void setRetryPolicy(CodePushRetryPolicy retryPolicy) {
+        sRetryPolicy = retryPolicy != null ? retryPolicy : new CodePushExponentialBackoffRetryPolicy();
+    }
+
+    static CodePushRetryPolicy getRetryPolicy() {
+        return sRetryPolicy;
+    }
+
+    /**
+     * Replaces the transport used for all native HTTP requests, e.g. with a
+     * {@link CodePushOkHttpTransport} wrapping the app's own OkHttpClient.
+     */
+    public static void setHttpTransport(CodePushHttpTransport httpTransport) {
+        sHttpTransport = httpTransport != null ? httpTransport : new CodePushUrlConnectionTransport();
+    }
+
+    static CodePushHttpTransport getHttpTransport() {
+        return sHttpTransport;
+    }
+
+    /**
+     * Lets the server apply gzip content coding to package downloads. The package is decoded
+     * while it downloads, and interrupted downloads resume against the encoded bytes when the
+     * server supports Range requests. Disabled by default.
+     */
+    public static void setCompressedTransferEnabled(boolean compressedTransferEnabled) {
+        sCompressedTransferEnabled = compressedTransferEnabled;
+    }
+
+    static boolean isCompressedTransferEnabled() {
+        return sCompressedTransferEnabled;
+    }
+
+    /**
+     * Extracts zip packages while they download instead of saving download.zip and unzipping
+     * it afterwards. The downloaded bytes are only kept on disk when the server supports Range
+     * requests, so that an interrupted download can still resume. Disabled by default.
+     */
+    public static void setStreamingInstallEnabled(boolean streamingInstallEnabled) {
+        sStreamingInstallEnabled = streamingInstallEnabled;
+    }
+
+    static boolean isStreamingInstallEnabled() {
+        return sStreamingInstallEnabled;
+    }
+
+    /**
+     * Hashes the files of an update package on a pool with one thread per core when its
+     * contents have to be hashed from disk, instead of one file at a time. The resulting
+     * package hash is the same either way. Needs Android 5.0 (API 21), older devices keep
+     * hashing sequentially. Disabled by default.
+     */
+    public static void setParallelHashingEnabled(boolean parallelHashingEnabled) {
+        sParallelHashingEnabled = parallelHashingEnabled;
+    }
+
+    static boolean isParallelHashingEnabled() {
+        return sParallelHashingEnabled;
+    }
+
+    /**
+     * Hard links the files a diff update keeps from the current package instead of copying
+     * them, so that installing a diff costs time and space in proportion to the changed files
+     * only. Files that cannot be linked are copied. Requires Android 5.0, older versions
+     * always copy. Disabled by default.
+     */
+    public static void setHardLinkingEnabled(boolean hardLinkingEnabled) {
+        sHardLinkingEnabled = hardLinkingEnabled;
+    }
+
+    static boolean isHardLinkingEnabled() {
+        return sHardLinkingEnabled;
+    }
+
+    /**
+     * Unzips downloaded packages from the zip central directory, inflating entries
+     * concurrently on a small thread pool instead of one after another. Disabled by default.
+     */
+    public static void setParallelUnzipEnabled(boolean parallelUnzipEnabled) {
+        sParallelUnzipEnabled = parallelUnzipEnabled;
+    }
+
+    static boolean isParallelUnzipEnabled() {
+        return sParallelUnzipEnabled;
+    }
+
+    /**
+     * Takes the zip entries of an update whose CRC-32 and size match a file of the current
+     * package from that package, linked or copied, instead of inflating and writing them again.
+     * This gives full updates that mostly repeat the current package an install cost close to
+     * a diff update. Disabled by default.
+     */
+    public static void setUnchangedFileReuseEnabled(boolean unchangedFileReuseEnabled) {
+        sUnchangedFileReuseEnabled = unchangedFileReuseEnabled;
+    }
+
+    static boolean isUnchangedFileReuseEnabled() {
+        return sUnchangedFileReuseEnabled;
+    }
+
+    /**
+     * Checks zip entry names lexically against the extraction folder, which is resolved once,
+     * instead of resolving every entry path on disk, remembers the directories it already
+     * created, and writes files in 64 KB blocks. Entries escaping the folder are rejected
+     * exactly as before. Disabled by default.
+     */
+    public static void setFastExtractionEnabled(boolean fastExtractionEnabled) {
+        sFastExtractionEnabled = fastExtractionEnabled;
+    }
+
+    static boolean isFastExtractionEnabled() {
+        return sFastExtractionEnabled;
+    }
+
+    /**
+     * Whether extracted files get the modification times stored in the zip. Turning it off
+     * saves a system call per file; nothing in the plugin relies on these times. Enabled by default.
+     */
+    public static void setRestoreFileTimesEnabled(boolean restoreFileTimesEnabled) {
+        sRestoreFileTimesEnabled = restoreFileTimesEnabled;
+    }
+
+    static boolean isRestoreFileTimesEnabled() {
+        return sRestoreFileTimesEnabled;
+    }
+
+    /**
+     * Keeps up to maxPackageCount verified update packages on disk, the current and previous
+     * package included, and evicts the least recently used ones once they take more than
+     * maxTotalBytes. Downloading a package that is still kept installs it without network access.
+     * A count of 0 (the default) keeps only the current and previous package, and deletes the
+     * packages kept while retention was enabled.
+     */
+    public static void setPackageRetention(int maxPackageCount, long maxTotalBytes) {
+        sMaxRetainedPackageCount = Math.max(0, maxPackageCount);
+        sMaxRetainedPackageBytes = Math.max(0, maxTotalBytes);
+    }
+
+    static int getMaxRetainedPackageCount() {
+        return sMaxRetainedPackageCount;
+    }
+
+    static long getMaxRetainedPackageBytes() {
+        return sMaxRetainedPackageBytes;
+    }
+
+    /**
+     * Stores each file of installed packages once, in a content addressed store keyed by its
+     * SHA-256, and hard links the files of package folders to it, so that files shared by the
+     * current, previous and retained packages take space once. Requires Android 5.0 (API 21).
+     */
+    public static void setFileDeduplicationEnabled(boolean fileDeduplicationEnabled) {
+        sFileDeduplicationEnabled = fileDeduplicationEnabled;
+    }
+
+    static boolean isFileDeduplicationEnabled() {
+        return sFileDeduplicationEnabled;
+    }
+
+    /**
+     * Limits the space the CodePush folder may take, the update being installed included.
+     * Updates that do not fit, even after packages other than the current and previous one are
+     * deleted, fail with a CodePushInsufficientStorageException. A quota of 0 (the default)
+     * only requires the update to fit in the free space of the device.
+     */
+    public static void setStorageQuota(long maxBytes) {
+        sStorageQuota = Math.max(0, maxBytes);
+    }
+
+    static long getStorageQuota() {
+        return sStorageQuota;
     }
 
     public void setNeedToReportRollback(boolean needToReportRollback) {
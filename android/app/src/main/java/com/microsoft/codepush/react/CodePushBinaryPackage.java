@@ -0,0 +1,251 @@
+package com.microsoft.codepush.react;
+
+import android.content.Context;
+import android.content.pm.ApplicationInfo;
+import android.os.Build;
+import android.util.JsonReader;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+// The CodePush package the binary was built with, as listed by the CodePushManifest asset that
+// generateBundledResourcesHash.js writes next to CodePushHash: the path and SHA-256 of the JS
+// bundle and of every asset it references. Its files are read from the APK, so that a diff
+// update released against the binary can be applied while no CodePush package is installed.
+class CodePushBinaryPackage {
+
+    private static final String PACKAGE_FOLDER_PREFIX = CodePushConstants.CODE_PUSH_FOLDER_PREFIX + "/";
+    private static final String RESOURCES_FOLDER_PREFIX = "res/";
+
+    private final Context mContext;
+    private Map<String, String> mFileHashes;
+    private boolean mIsManifestRead;
+
+    public CodePushBinaryPackage(Context context) {
+        mContext = context;
+    }
+
+    // Reads the manifest on first use, as most updates are not diffs against the binary. Returns
+    // null if the binary was built without it.
+    private Map<String, String> getFileHashes() {
+        if (mIsManifestRead) {
+            return mFileHashes;
+        }
+
+        mIsManifestRead = true;
+        InputStream manifestStream;
+        try {
+            manifestStream = mContext.getAssets().open(CodePushConstants.CODE_PUSH_MANIFEST_FILE_NAME);
+        } catch (IOException e) {
+            return null;
+        }
+
+        Map<String, String> fileHashes = new HashMap<>();
+        try {
+            JsonReader reader = new JsonReader(new InputStreamReader(manifestStream, "UTF-8"));
+            try {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    fileHashes.put(reader.nextName(), reader.nextString());
+                }
+                reader.endObject();
+            } finally {
+                reader.close();
+            }
+        } catch (IOException | IllegalStateException e) {
+            CodePushUtils.log("Ignoring unreadable binary manifest " + e.getMessage());
+            return null;
+        }
+
+        mFileHashes = fileHashes;
+        return mFileHashes;
+    }
+
+    // Returns whether every file of the manifest is in the APK with the hash it was built with.
+    // The build may change files after the manifest is written, e.g. aapt crunches PNG images,
+    // and diff updates can only be applied to the binary when it did not.
+    public boolean verifyFiles() throws IOException {
+        Map<String, String> fileHashes = getFileHashes();
+        if (fileHashes == null) {
+            return false;
+        }
+
+        Map<String, String[]> resourceEntries = null;
+        Map<String, ZipFile> archives = new HashMap<>();
+        MessageDigest messageDigest = CodePushUpdateUtils.createHashDigest();
+        byte[] buffer = new byte[CodePushConstants.DOWNLOAD_BUFFER_SIZE];
+        long startTime = System.currentTimeMillis();
+        try {
+            for (Map.Entry<String, String> fileHash : fileHashes.entrySet()) {
+                String relativePath = fileHash.getKey();
+                if (!relativePath.startsWith(PACKAGE_FOLDER_PREFIX)) {
+                    return false;
+                }
+
+                String binaryPath = relativePath.substring(PACKAGE_FOLDER_PREFIX.length());
+                if (resourceEntries == null && binaryPath.indexOf('/') >= 0) {
+                    resourceEntries = readResourceEntries(archives);
+                }
+                InputStream fileStream = openFile(binaryPath, resourceEntries, archives);
+                if (fileStream == null) {
+                    CodePushUtils.log("Unable to find " + relativePath + " in the binary.");
+                    return false;
+                }
+
+                messageDigest.reset();
+                try {
+                    int numBytesRead;
+                    while ((numBytesRead = fileStream.read(buffer)) != -1) {
+                        messageDigest.update(buffer, 0, numBytesRead);
+                    }
+                } finally {
+                    fileStream.close();
+                }
+
+                if (!CodePushUpdateUtils.formatHash(messageDigest.digest()).equals(fileHash.getValue())) {
+                    CodePushUtils.log("The binary's copy of " + relativePath + " differs from the one it was built with.");
+                    return false;
+                }
+            }
+        } finally {
+            for (ZipFile archive : archives.values()) {
+                archive.close();
+            }
+        }
+
+        CodePushUtils.log("Verified " + fileHashes.size() + " files of the binary, " + (System.currentTimeMillis() - startTime) + " ms");
+        return true;
+    }
+
+    // Writes the files of the binary that are neither excluded nor already in the new package
+    // folder to it, and records their hashes in the manifest. Files that cannot be found in the
+    // APK, or were changed by the build, are left out, in which case the new package fails its
+    // integrity check. Diff updates are only offered against binaries that passed verifyFiles.
+    public void copyFiles(String newPackageFolderPath, Set<String> excludedFiles, CodePushPackageManifest manifest) throws IOException {
+        Map<String, String> fileHashes = getFileHashes();
+        if (fileHashes == null) {
+            throw new CodePushInvalidUpdateException("Update is a diff against the binary, which was built without a manifest of its files.");
+        }
+
+        Map<String, String[]> resourceEntries = null;
+        Map<String, ZipFile> archives = new HashMap<>();
+        MessageDigest messageDigest = CodePushUpdateUtils.createHashDigest();
+        byte[] buffer = new byte[CodePushConstants.DOWNLOAD_BUFFER_SIZE];
+        int copiedFileCount = 0;
+        try {
+            for (Map.Entry<String, String> fileHash : fileHashes.entrySet()) {
+                String relativePath = fileHash.getKey();
+                File file = new File(newPackageFolderPath, relativePath);
+                if (excludedFiles.contains(relativePath) || !relativePath.startsWith(PACKAGE_FOLDER_PREFIX) || file.exists()) {
+                    continue;
+                }
+
+                String binaryPath = relativePath.substring(PACKAGE_FOLDER_PREFIX.length());
+                if (resourceEntries == null && binaryPath.indexOf('/') >= 0) {
+                    resourceEntries = readResourceEntries(archives);
+                }
+                InputStream fileStream = openFile(binaryPath, resourceEntries, archives);
+                if (fileStream == null) {
+                    CodePushUtils.log("Unable to find " + relativePath + " in the binary.");
+                    continue;
+                }
+
+                file.getParentFile().mkdirs();
+                messageDigest.reset();
+                long fileSize;
+                try {
+                    fileSize = FileUtils.writeEntry(fileStream, file, messageDigest, buffer);
+                } finally {
+                    fileStream.close();
+                }
+
+                String hash = CodePushUpdateUtils.formatHash(messageDigest.digest());
+                if (!hash.equals(fileHash.getValue())) {
+                    CodePushUtils.log("The binary's copy of " + relativePath + " differs from the one it was built with.");
+                    file.delete();
+                    continue;
+                }
+
+                if (manifest != null) {
+                    manifest.put(relativePath, hash, -1, fileSize);
+                }
+                copiedFileCount++;
+            }
+        } finally {
+            for (ZipFile archive : archives.values()) {
+                archive.close();
+            }
+        }
+
+        CodePushUtils.log("Copied " + copiedFileCount + " files from the binary.");
+    }
+
+    // Opens the file at the given path of the package in the APK, or returns null if it is not
+    // there. The bundle and its metadata are APK assets, the assets referenced by the bundle are
+    // Android resources, which need the resource entries.
+    private InputStream openFile(String binaryPath, Map<String, String[]> resourceEntries,
+                                 Map<String, ZipFile> archives) throws IOException {
+        if (binaryPath.indexOf('/') < 0) {
+            try {
+                return mContext.getAssets().open(binaryPath);
+            } catch (FileNotFoundException e) {
+                return null;
+            }
+        }
+
+        String[] resourceEntry = resourceEntries.get(binaryPath);
+        if (resourceEntry == null) {
+            return null;
+        }
+        ZipFile archive = archives.get(resourceEntry[0]);
+        return archive.getInputStream(archive.getEntry(resourceEntry[1]));
+    }
+
+    // Lists the resource files of the APK and its splits by their path in the res folder the build
+    // read them from. aapt appends the minimum API level to some folder names, e.g.
+    // drawable-mdpi-v4, so it is removed from the keys. Each value is {archivePath, entryName}.
+    private Map<String, String[]> readResourceEntries(Map<String, ZipFile> archives) throws IOException {
+        ApplicationInfo applicationInfo = mContext.getApplicationInfo();
+        List<String> archivePaths = new ArrayList<>();
+        archivePaths.add(applicationInfo.sourceDir);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP && applicationInfo.splitSourceDirs != null) {
+            for (String splitSourceDir : applicationInfo.splitSourceDirs) {
+                archivePaths.add(splitSourceDir);
+            }
+        }
+
+        Map<String, String[]> resourceEntries = new HashMap<>();
+        for (String archivePath : archivePaths) {
+            ZipFile archive = new ZipFile(archivePath);
+            archives.put(archivePath, archive);
+            Enumeration<? extends ZipEntry> entries = archive.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                String entryName = entry.getName();
+                int folderEnd = entryName.lastIndexOf('/');
+                if (entry.isDirectory() || !entryName.startsWith(RESOURCES_FOLDER_PREFIX) || folderEnd <= RESOURCES_FOLDER_PREFIX.length()) {
+                    continue;
+                }
+
+                String folderName = entryName.substring(RESOURCES_FOLDER_PREFIX.length(), folderEnd).replaceFirst("-v[0-9]+$", "");
+                String resourcePath = folderName + entryName.substring(folderEnd);
+                if (!resourceEntries.containsKey(resourcePath)) {
+                    resourceEntries.put(resourcePath, new String[]{archivePath, entryName});
+                }
+            }
+        }
+        return resourceEntries;
+    }
+}
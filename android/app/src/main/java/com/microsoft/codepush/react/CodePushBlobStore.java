@@ -0,0 +1,116 @@
+package com.microsoft.codepush.react;
+
+import android.os.Build;
+
+import java.io.File;
+import java.io.IOException;
+
+// Content addressed store of the files of installed packages, kept in the blobs folder of the
+// CodePush folder and named by their SHA-256. Package folders hard link their files to the
+// blobs, so a file shared by several packages takes space once. A blob is in use while a
+// package folder links to it, i.e. while its link count is above one; unused blobs are
+// deleted by collectGarbage. Blobs are never written to: package files are always replaced
+// by new files rather than modified.
+class CodePushBlobStore {
+
+    private final File mBlobsFolder;
+
+    public CodePushBlobStore(String codePushPath) {
+        mBlobsFolder = new File(codePushPath, CodePushConstants.BLOBS_FOLDER_NAME);
+    }
+
+    // Hard links need Android 5.0 (API 21).
+    public static boolean isSupported() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP;
+    }
+
+    // Links every file of the package folder to the blob with its hash, adding the files that
+    // are not stored yet as new blobs. Files that cannot be linked keep their own copy.
+    public void addPackage(String packageFolderPath, CodePushPackageManifest manifest) {
+        if (!isSupported()) {
+            return;
+        }
+
+        long startTime = System.currentTimeMillis();
+        int sharedFileCount = 0;
+        for (String relativePath : manifest.getRelativePaths()) {
+            String hash = manifest.get(relativePath);
+            if (!CodePushUpdateUtils.isPackageHash(hash)) {
+                continue;
+            }
+
+            File file = new File(packageFolderPath, relativePath);
+            File blob = getBlobFile(hash);
+            try {
+                if (!blob.exists()) {
+                    blob.getParentFile().mkdirs();
+                    CodePushPosix.link(file.getPath(), blob.getPath());
+                } else if (shareBlob(file, blob)) {
+                    sharedFileCount++;
+                }
+            } catch (IOException e) {
+                // The blob may have been added or collected concurrently, the package keeps its copy.
+                CodePushUtils.log("Unable to store " + relativePath + " as a blob " + e.getMessage());
+            }
+        }
+
+        CodePushUtils.log("Stored package files as blobs, " + sharedFileCount + " shared with other packages, "
+                + (System.currentTimeMillis() - startTime) + " ms");
+    }
+
+    // Deletes the blobs no package folder links to anymore.
+    public void collectGarbage() {
+        File[] blobFolders = isSupported() ? mBlobsFolder.listFiles() : null;
+        if (blobFolders == null) {
+            return;
+        }
+
+        int deletedBlobCount = 0;
+        for (File blobFolder : blobFolders) {
+            File[] blobs = blobFolder.listFiles();
+            if (blobs == null) {
+                continue;
+            }
+
+            for (File blob : blobs) {
+                try {
+                    if (CodePushPosix.stat(blob.getPath()).linkCount <= 1 && blob.delete()) {
+                        deletedBlobCount++;
+                    }
+                } catch (IOException e) {
+                    CodePushUtils.log("Unable to check blob " + blob.getName() + " " + e.getMessage());
+                }
+            }
+        }
+
+        CodePushUtils.log("Deleted " + deletedBlobCount + " unused blobs.");
+    }
+
+    // Replaces the file with a link to the blob, unless it already is one. Returns whether it was replaced.
+    private boolean shareBlob(File file, File blob) throws IOException {
+        CodePushPosix.FileStatus fileStatus = CodePushPosix.stat(file.getPath());
+        CodePushPosix.FileStatus blobStatus = CodePushPosix.stat(blob.getPath());
+        if (fileStatus.deviceId == blobStatus.deviceId && fileStatus.inode == blobStatus.inode) {
+            return false;
+        } else if (fileStatus.size != blobStatus.size) {
+            CodePushUtils.log("Blob " + blob.getName() + " does not match the size of " + file.getName() + ", keeping the file.");
+            return false;
+        }
+
+        // Link the blob under a temporary name first, so that the file is replaced by a rename.
+        File link = new File(mBlobsFolder, blob.getName() + ".tmp");
+        link.delete();
+        CodePushPosix.link(blob.getPath(), link.getPath());
+        try {
+            CodePushPosix.rename(link.getPath(), file.getPath());
+        } catch (IOException e) {
+            link.delete();
+            throw e;
+        }
+        return true;
+    }
+
+    private File getBlobFile(String hash) {
+        return new File(new File(mBlobsFolder, hash.substring(0, 2)), hash);
+    }
+}
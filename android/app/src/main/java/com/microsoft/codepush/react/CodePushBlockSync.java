@@ -0,0 +1,304 @@
+package com.microsoft.codepush.react;
+
+import android.util.JsonReader;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Rebuilds the new version of a file from its block signature, rsync style: the blocks of the
+// new version are looked for at any offset of the old version, and only the blocks that are not
+// found are fetched, with Range requests against the full file. The signature describes the new
+// version only, so the same one works whichever old version is installed.
+//
+// The signature is a JSON object {"blockSize": n, "size": fileSize, "hash": fileSha256,
+// "blocks": [[weakChecksum, blockSha256], ...]}, which scripts/generateBlockSignature.js writes.
+// The weak checksum of the bytes X[0..n-1] of a block is a + 65536 * b, where a is the sum of
+// X[i] and b the sum of (n - i) * X[i], both modulo 65536.
+class CodePushBlockSync {
+
+    private static final int READ_BUFFER_SIZE = 1024 * 64;
+
+    private final int mBlockSize;
+    private final long mFileSize;
+    private final String mFileHash;
+    private final long[] mWeakChecksums;
+    private final String[] mBlockHashes;
+
+    private CodePushBlockSync(int blockSize, long fileSize, String fileHash, long[] weakChecksums, String[] blockHashes) {
+        mBlockSize = blockSize;
+        mFileSize = fileSize;
+        mFileHash = fileHash;
+        mWeakChecksums = weakChecksums;
+        mBlockHashes = blockHashes;
+    }
+
+    public static CodePushBlockSync loadSignature(File signatureFile) throws IOException {
+        int blockSize = 0;
+        long fileSize = -1;
+        String fileHash = null;
+        List<Long> weakChecksums = new ArrayList<>();
+        List<String> blockHashes = new ArrayList<>();
+        JsonReader reader = new JsonReader(new InputStreamReader(new BufferedInputStream(new FileInputStream(signatureFile)), "UTF-8"));
+        try {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (name.equals("blockSize")) {
+                    blockSize = reader.nextInt();
+                } else if (name.equals("size")) {
+                    fileSize = reader.nextLong();
+                } else if (name.equals("hash")) {
+                    fileHash = reader.nextString();
+                } else if (name.equals("blocks")) {
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        reader.beginArray();
+                        weakChecksums.add(reader.nextLong());
+                        blockHashes.add(reader.nextString());
+                        reader.endArray();
+                    }
+                    reader.endArray();
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+        } catch (IllegalStateException | NumberFormatException e) {
+            throw new CodePushInvalidUpdateException("Block signature " + signatureFile.getName() + " is malformed: " + e.getMessage());
+        } finally {
+            reader.close();
+        }
+
+        if (blockSize <= 0 || fileSize < 0 || fileHash == null
+                || weakChecksums.size() != (fileSize + blockSize - 1) / blockSize) {
+            throw new CodePushInvalidUpdateException("Block signature " + signatureFile.getName() + " is incomplete.");
+        }
+
+        long[] weakChecksumArray = new long[weakChecksums.size()];
+        for (int i = 0; i < weakChecksumArray.length; i++) {
+            weakChecksumArray[i] = weakChecksums.get(i);
+        }
+        return new CodePushBlockSync(blockSize, fileSize, fileHash, weakChecksumArray, blockHashes.toArray(new String[0]));
+    }
+
+    // Writes the new version of the file to targetFile, taking the blocks it can from oldFile,
+    // which may be null, and fetching the others from the url within the retry budget of the
+    // download. Returns the SHA-256 of the file.
+    public String sync(File oldFile, String url, File targetFile, CodePushRetryBudget retryBudget) throws IOException {
+        long startTime = System.currentTimeMillis();
+        long[] blockOffsets = findBlocks(oldFile);
+        MessageDigest messageDigest = CodePushUpdateUtils.createHashDigest();
+        RandomAccessFile oldFileReader = null;
+        OutputStream out = null;
+        long fetchedBytes = 0;
+        try {
+            out = new BufferedOutputStream(new FileOutputStream(targetFile), READ_BUFFER_SIZE);
+            byte[] buffer = new byte[Math.max(mBlockSize, READ_BUFFER_SIZE)];
+            for (int block = 0; block < blockOffsets.length; ) {
+                if (blockOffsets[block] >= 0) {
+                    if (oldFileReader == null) {
+                        oldFileReader = new RandomAccessFile(oldFile, "r");
+                    }
+                    int blockLength = getBlockLength(block);
+                    oldFileReader.seek(blockOffsets[block]);
+                    oldFileReader.readFully(buffer, 0, blockLength);
+                    out.write(buffer, 0, blockLength);
+                    messageDigest.update(buffer, 0, blockLength);
+                    block++;
+                    continue;
+                }
+
+                // Blocks missing one after the other are fetched with a single request.
+                int endBlock = block;
+                while (endBlock < blockOffsets.length && blockOffsets[endBlock] < 0) {
+                    endBlock++;
+                }
+                long start = (long) block * mBlockSize;
+                long end = Math.min((long) endBlock * mBlockSize, mFileSize) - 1;
+                fetchRange(url, start, end, out, messageDigest, buffer, retryBudget);
+                fetchedBytes += end - start + 1;
+                block = endBlock;
+            }
+        } finally {
+            if (oldFileReader != null) oldFileReader.close();
+            if (out != null) out.close();
+        }
+
+        String fileHash = CodePushUpdateUtils.formatHash(messageDigest.digest());
+        if (!fileHash.equals(mFileHash)) {
+            throw new CodePushInvalidUpdateException("The synced contents of " + targetFile.getName() + " do not match their block signature.");
+        }
+
+        CodePushUtils.log("Synced " + mFileSize + " bytes, fetched " + fetchedBytes + ", " + (System.currentTimeMillis() - startTime) + " ms");
+        return fileHash;
+    }
+
+    // Returns the offset in the old file of every block of the new file, or -1 for blocks that
+    // are not in it. The weak checksum is rolled over every offset, and the SHA-256 of the
+    // window is only computed when it matches a block.
+    private long[] findBlocks(File oldFile) throws IOException {
+        long[] blockOffsets = new long[mWeakChecksums.length];
+        Arrays.fill(blockOffsets, -1);
+        if (oldFile == null || !oldFile.isFile() || oldFile.length() < mBlockSize) {
+            return blockOffsets;
+        }
+
+        // A shorter last block is only ever fetched.
+        int fullBlockCount = (int) (mFileSize / mBlockSize);
+        Map<Long, List<Integer>> blocksByWeakChecksum = new HashMap<>();
+        for (int block = 0; block < fullBlockCount; block++) {
+            List<Integer> blocks = blocksByWeakChecksum.get(mWeakChecksums[block]);
+            if (blocks == null) {
+                blocks = new ArrayList<>();
+                blocksByWeakChecksum.put(mWeakChecksums[block], blocks);
+            }
+            blocks.add(block);
+        }
+
+        MessageDigest messageDigest = CodePushUpdateUtils.createHashDigest();
+        InputStream in = new BufferedInputStream(new FileInputStream(oldFile), READ_BUFFER_SIZE);
+        try {
+            // The window is a ring buffer starting at windowStart.
+            byte[] window = new byte[mBlockSize];
+            int windowStart = 0;
+            long offset = 0;
+            if (!readBlock(in, window)) {
+                return blockOffsets;
+            }
+            int a = 0;
+            int b = 0;
+            for (int i = 0; i < mBlockSize; i++) {
+                a += window[i] & 0xFF;
+                b += (mBlockSize - i) * (window[i] & 0xFF);
+            }
+
+            while (true) {
+                long weakChecksum = (a & 0xFFFF) + 65536L * (b & 0xFFFF);
+                List<Integer> candidates = blocksByWeakChecksum.get(weakChecksum);
+                boolean isMatched = false;
+                if (candidates != null) {
+                    messageDigest.update(window, windowStart, mBlockSize - windowStart);
+                    messageDigest.update(window, 0, windowStart);
+                    String windowHash = CodePushUpdateUtils.formatHash(messageDigest.digest());
+                    for (int block : candidates) {
+                        if (blockOffsets[block] < 0 && mBlockHashes[block].equals(windowHash)) {
+                            blockOffsets[block] = offset;
+                            isMatched = true;
+                        }
+                    }
+                }
+
+                if (isMatched) {
+                    // Blocks of the new file rarely overlap in the old one, so continue after the match.
+                    if (!readBlock(in, window)) {
+                        break;
+                    }
+                    windowStart = 0;
+                    offset += mBlockSize;
+                    a = 0;
+                    b = 0;
+                    for (int i = 0; i < mBlockSize; i++) {
+                        a += window[i] & 0xFF;
+                        b += (mBlockSize - i) * (window[i] & 0xFF);
+                    }
+                } else {
+                    int nextByte = in.read();
+                    if (nextByte == -1) {
+                        break;
+                    }
+                    int outgoingByte = window[windowStart] & 0xFF;
+                    window[windowStart] = (byte) nextByte;
+                    windowStart = (windowStart + 1) % mBlockSize;
+                    offset++;
+                    a = (a - outgoingByte + nextByte) & 0xFFFF;
+                    b = (b - mBlockSize * outgoingByte + a) & 0xFFFF;
+                }
+            }
+        } finally {
+            in.close();
+        }
+        return blockOffsets;
+    }
+
+    // Fills the block, returning false if the stream ends first.
+    private static boolean readBlock(InputStream in, byte[] block) throws IOException {
+        int length = 0;
+        while (length < block.length) {
+            int numBytesRead = in.read(block, length, block.length - length);
+            if (numBytesRead == -1) {
+                return false;
+            }
+            length += numBytesRead;
+        }
+        return true;
+    }
+
+    private int getBlockLength(int block) {
+        return (int) Math.min(mBlockSize, mFileSize - (long) block * mBlockSize);
+    }
+
+    // Writes bytes start to end (inclusive) of the file at the url, resuming from the last byte
+    // written when an attempt fails, for as long as the retry budget allows.
+    private static void fetchRange(String url, long start, long end, OutputStream out, MessageDigest messageDigest,
+                                   byte[] buffer, CodePushRetryBudget retryBudget) throws IOException {
+        long position = start;
+        while (position <= end) {
+            CodePushHttpTransport.Response response = null;
+            InputStream body = null;
+            try {
+                Map<String, String> headers = new HashMap<>();
+                headers.put("Range", "bytes=" + position + "-" + end);
+                headers.put("Accept-Encoding", "identity");
+                response = CodePushUpdateManager.sendDownloadRequest(url, headers);
+                int responseCode = response.getStatusCode();
+                if (responseCode >= 400) {
+                    throw new CodePushHttpException(url, responseCode);
+                } else if (responseCode != HttpURLConnection.HTTP_PARTIAL) {
+                    throw new CodePushUnknownException("Block sync needs Range requests, which " + url + " answered with " + responseCode + ".");
+                }
+
+                body = response.getBody();
+                int numBytesRead;
+                while (position <= end && (numBytesRead = body.read(buffer, 0, (int) Math.min(buffer.length, end - position + 1))) >= 0) {
+                    out.write(buffer, 0, numBytesRead);
+                    messageDigest.update(buffer, 0, numBytesRead);
+                    position += numBytesRead;
+                }
+
+                if (position <= end) {
+                    throw new IOException("Range " + start + "-" + end + " of " + url + " ended early at " + position);
+                }
+            } catch (MalformedURLException e) {
+                throw new CodePushMalformedDataException(url, e);
+            } catch (IOException e) {
+                CodePushUtils.log("Fetching range " + start + "-" + end + " failed at " + position + " " + e.getMessage());
+                retryBudget.awaitRetry(e);
+            } finally {
+                if (body != null) {
+                    try {
+                        body.close();
+                    } catch (IOException e) {
+                        // Nothing to do, the response is released below.
+                    }
+                }
+                if (response != null) response.close();
+            }
+        }
+    }
+}
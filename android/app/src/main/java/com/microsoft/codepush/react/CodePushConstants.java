@@ -5,6 +5,7 @@ public class CodePushConstants {
     public static final String BINARY_MODIFIED_TIME_KEY = "binaryModifiedTime";
     public static final String CODE_PUSH_FOLDER_PREFIX = "CodePush";
     public static final String CODE_PUSH_HASH_FILE_NAME = "CodePushHash";
+    public static final String CODE_PUSH_MANIFEST_FILE_NAME = "CodePushManifest";
     public static final String CODE_PUSH_OLD_HASH_FILE_NAME = "CodePushHash.json";
     public static final String CODE_PUSH_PREFERENCES = "CodePush";
     public static final String CURRENT_PACKAGE_KEY = "currentPackage";
@@ -12,24 +13,38 @@ public class CodePushConstants {
     public static final String DIFF_MANIFEST_FILE_NAME = "hotcodepush.json";
     public static final int DOWNLOAD_BUFFER_SIZE = 1024 * 256;
     public static final String DOWNLOAD_FILE_NAME = "download.zip";
+    public static final String DOWNLOAD_ENCODED_FILE_NAME = "download.zip.encoded";
+    public static final String DOWNLOAD_JOURNAL_FILE_NAME = "download.json";
     public static final String DOWNLOAD_PROGRESS_EVENT_NAME = "CodePushDownloadProgress";
     public static final String DOWNLOAD_URL_KEY = "downloadUrl";
+    public static final String INSUFFICIENT_STORAGE_ERROR_CODE = "CodePushInsufficientStorage";
     public static final String FAILED_UPDATES_KEY = "CODE_PUSH_FAILED_UPDATES";
     public static final String PACKAGE_FILE_NAME = "app.json";
+    public static final String PACKAGE_HASHES_FILE_NAME = "hashes.json";
+    public static final String PACKAGE_STORE_FILE_NAME = "packages.json";
+    public static final String PACKAGE_STAGING_FOLDER_SUFFIX = ".staging";
     public static final String PACKAGE_HASH_KEY = "packageHash";
+    public static final String PACKAGE_SIZE_KEY = "packageSize";
     public static final String PENDING_UPDATE_HASH_KEY = "hash";
     public static final String PENDING_UPDATE_IS_LOADING_KEY = "isLoading";
     public static final String PENDING_UPDATE_KEY = "CODE_PUSH_PENDING_UPDATE";
     public static final String PREVIOUS_PACKAGE_KEY = "previousPackage";
     public static final String REACT_NATIVE_LOG_TAG = "ReactNative";
     public static final String RELATIVE_BUNDLE_PATH_KEY = "bundlePath";
+    public static final String ROLLED_BACK_PACKAGE_KEY = "rolledBackPackage";
     public static final String STATUS_FILE = "codepush.json";
+    public static final String TRASH_FOLDER_NAME = ".CodePushTrash";
     public static final String UNZIPPED_FOLDER_NAME = "unzipped";
     public static final String CODE_PUSH_APK_BUILD_TIME_KEY = "CODE_PUSH_APK_BUILD_TIME";
+    public static final String BLOBS_FOLDER_NAME = "blobs";
     public static final String BUNDLE_JWT_FILE = ".codepushrelease";
     public static final String LATEST_ROLLBACK_INFO_KEY = "LATEST_ROLLBACK_INFO";
     public static final String LATEST_ROLLBACK_PACKAGE_HASH_KEY = "packageHash";
     public static final String LATEST_ROLLBACK_TIME_KEY = "time";
     public static final String LATEST_ROLLBACK_COUNT_KEY = "count";
     public static final String CLIENT_UNIQUE_ID_KEY = "clientUniqueId";
+    public static final String BINARY_DIFF_BASE_KEY = "CODE_PUSH_BINARY_DIFF_BASE";
+    public static final String BINARY_DIFF_BASE_HASH_KEY = "hash";
+    public static final String BINARY_DIFF_BASE_IS_VERIFIED_KEY = "isVerified";
+    public static final String IS_BINARY_DIFF_BASE_KEY = "isBinaryDiffBase";
 }
@@ -0,0 +1,172 @@
+package com.microsoft.codepush.react;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+
+// On-disk record of a partially downloaded package, kept next to download.zip so that a
+// download interrupted by process death can resume from the last committed offset.
+class CodePushDownloadJournal {
+
+    private static final String PACKAGE_HASH_KEY = "packageHash";
+    private static final String DOWNLOAD_URL_KEY = "downloadUrl";
+    private static final String VALIDATOR_KEY = "validator";
+    private static final String TOTAL_BYTES_KEY = "totalBytes";
+    private static final String COMMITTED_OFFSET_KEY = "committedOffset";
+    private static final String SEGMENTS_KEY = "segments";
+    private static final String CONTENT_ENCODING_KEY = "contentEncoding";
+
+    private final File mJournalFile;
+    private final String mPackageHash;
+    private final String mDownloadUrl;
+    private String mValidator;
+    // Set while the committed offset refers to a content-encoded transfer.
+    private String mContentEncoding;
+    private long mTotalBytes = -1;
+    private long mCommittedOffset = 0;
+    // Each segment is {start, end, committedPosition}, or null for single stream downloads.
+    private long[][] mSegments;
+
+    public CodePushDownloadJournal(File journalFile, String packageHash, String downloadUrl) {
+        mJournalFile = journalFile;
+        mPackageHash = packageHash;
+        mDownloadUrl = downloadUrl;
+    }
+
+    public static CodePushDownloadJournal load(File journalFile) {
+        if (!journalFile.exists()) {
+            return null;
+        }
+
+        try {
+            JSONObject json = CodePushUtils.getJsonObjectFromFile(journalFile.getAbsolutePath());
+            CodePushDownloadJournal journal = new CodePushDownloadJournal(journalFile,
+                    json.getString(PACKAGE_HASH_KEY), json.getString(DOWNLOAD_URL_KEY));
+            journal.mValidator = json.optString(VALIDATOR_KEY, null);
+            journal.mContentEncoding = json.optString(CONTENT_ENCODING_KEY, null);
+            journal.mTotalBytes = json.optLong(TOTAL_BYTES_KEY, -1);
+            journal.mCommittedOffset = json.optLong(COMMITTED_OFFSET_KEY, 0);
+            JSONArray segments = json.optJSONArray(SEGMENTS_KEY);
+            if (segments != null) {
+                journal.mSegments = new long[segments.length()][];
+                for (int i = 0; i < segments.length(); i++) {
+                    JSONArray segment = segments.getJSONArray(i);
+                    journal.mSegments[i] = new long[]{segment.getLong(0), segment.getLong(1), segment.getLong(2)};
+                }
+            }
+            return journal;
+        } catch (IOException | JSONException | CodePushMalformedDataException e) {
+            CodePushUtils.log("Ignoring unreadable download journal " + e.getMessage());
+            return null;
+        }
+    }
+
+    // Returns a validator usable in an If-Range header: a strong ETag, or Last-Modified.
+    public static String readValidator(CodePushHttpTransport.Response response) {
+        String eTag = response.getHeader("ETag");
+        if (eTag != null && !eTag.startsWith("W/")) {
+            return eTag;
+        }
+
+        return response.getHeader("Last-Modified");
+    }
+
+    public boolean isFor(String packageHash, String downloadUrl) {
+        return mPackageHash != null && mPackageHash.equals(packageHash)
+                && mDownloadUrl != null && mDownloadUrl.equals(downloadUrl);
+    }
+
+    public boolean isComplete() {
+        return mSegments == null && mContentEncoding == null && mTotalBytes > 0 && mCommittedOffset == mTotalBytes;
+    }
+
+    public String getValidator() {
+        return mValidator;
+    }
+
+    public void setValidator(String validator) {
+        mValidator = validator;
+    }
+
+    public String getContentEncoding() {
+        return mContentEncoding;
+    }
+
+    public void setContentEncoding(String contentEncoding) {
+        mContentEncoding = contentEncoding;
+    }
+
+    public long getTotalBytes() {
+        return mTotalBytes;
+    }
+
+    public void setTotalBytes(long totalBytes) {
+        mTotalBytes = totalBytes;
+    }
+
+    public long getCommittedOffset() {
+        return mCommittedOffset;
+    }
+
+    public void setCommittedOffset(long committedOffset) {
+        mCommittedOffset = committedOffset;
+    }
+
+    public long[][] getSegments() {
+        return mSegments;
+    }
+
+    public void setSegments(long[][] segments) {
+        mSegments = segments;
+    }
+
+    public synchronized void setSegmentPosition(int index, long position) {
+        mSegments[index][2] = position;
+    }
+
+    // Forgets any progress, e.g. when the server reports that the remote file changed.
+    public void reset() {
+        mValidator = null;
+        mContentEncoding = null;
+        mTotalBytes = -1;
+        mCommittedOffset = 0;
+        mSegments = null;
+    }
+
+    public synchronized void save() {
+        JSONObject json = new JSONObject();
+        CodePushUtils.setJSONValueForKey(json, PACKAGE_HASH_KEY, mPackageHash);
+        CodePushUtils.setJSONValueForKey(json, DOWNLOAD_URL_KEY, mDownloadUrl);
+        CodePushUtils.setJSONValueForKey(json, VALIDATOR_KEY, mValidator);
+        CodePushUtils.setJSONValueForKey(json, CONTENT_ENCODING_KEY, mContentEncoding);
+        CodePushUtils.setJSONValueForKey(json, TOTAL_BYTES_KEY, mTotalBytes);
+        CodePushUtils.setJSONValueForKey(json, COMMITTED_OFFSET_KEY, mCommittedOffset);
+        if (mSegments != null) {
+            JSONArray segments = new JSONArray();
+            for (long[] segment : mSegments) {
+                JSONArray segmentJson = new JSONArray();
+                for (long value : segment) {
+                    segmentJson.put(value);
+                }
+                segments.put(segmentJson);
+            }
+            CodePushUtils.setJSONValueForKey(json, SEGMENTS_KEY, segments);
+        }
+
+        try {
+            FileUtils.writeStringToFileAtomically(json.toString(), mJournalFile.getAbsolutePath());
+        } catch (IOException e) {
+            // Losing the journal only costs a restart from zero, so do not fail the download.
+            CodePushUtils.log("Unable to save download journal " + e.getMessage());
+        }
+    }
+
+    public void delete() {
+        if (mJournalFile.exists() && !mJournalFile.delete()) {
+            CodePushUtils.log("Error deleting download journal " + mJournalFile.getName());
+        }
+    }
+}
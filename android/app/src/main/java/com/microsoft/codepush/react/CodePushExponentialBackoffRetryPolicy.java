@@ -0,0 +1,92 @@
+package com.microsoft.codepush.react;
+
+import java.io.FileNotFoundException;
+import java.net.MalformedURLException;
+import java.net.ProtocolException;
+import java.util.Random;
+
+import javax.net.ssl.SSLHandshakeException;
+import javax.net.ssl.SSLPeerUnverifiedException;
+
+/**
+ * Retries transient errors with exponential backoff and full jitter: the delay before retry n
+ * is a random value between 0 and min(maxDelay, baseDelay * 2^(n-1)).
+ */
+public class CodePushExponentialBackoffRetryPolicy implements CodePushRetryPolicy {
+
+    private static final int DEFAULT_MAX_RETRIES = 20;
+    private static final long DEFAULT_BASE_DELAY = 500;
+    private static final long DEFAULT_MAX_DELAY = 30 * 1000;
+    private static final long DEFAULT_TOTAL_TIME_BUDGET = 10 * 60 * 1000;
+    private static final int DEFAULT_TIMEOUT = 60 * 1000;
+
+    private final int mMaxRetries;
+    private final long mBaseDelay;
+    private final long mMaxDelay;
+    private final long mTotalTimeBudget;
+    private final int mAttemptTimeout;
+    private final Random mRandom = new Random();
+
+    public CodePushExponentialBackoffRetryPolicy() {
+        this(DEFAULT_MAX_RETRIES, DEFAULT_BASE_DELAY, DEFAULT_MAX_DELAY, DEFAULT_TOTAL_TIME_BUDGET, DEFAULT_TIMEOUT);
+    }
+
+    public CodePushExponentialBackoffRetryPolicy(int maxRetries, long baseDelay, long maxDelay,
+                                                 long totalTimeBudget, int attemptTimeout) {
+        mMaxRetries = maxRetries;
+        mBaseDelay = baseDelay;
+        mMaxDelay = maxDelay;
+        mTotalTimeBudget = totalTimeBudget;
+        mAttemptTimeout = attemptTimeout;
+    }
+
+    @Override
+    public boolean isRetryable(Throwable error) {
+        if (error instanceof CodePushHttpException) {
+            int statusCode = ((CodePushHttpException) error).getStatusCode();
+            // Client errors will not go away by themselves, except for timeouts and throttling.
+            return statusCode >= 500 || statusCode == 408 || statusCode == 425 || statusCode == 429;
+        }
+
+        // Certificate problems, bad URLs, redirect loops and missing local files are fatal.
+        return !(error instanceof SSLHandshakeException
+                || error instanceof SSLPeerUnverifiedException
+                || error instanceof MalformedURLException
+                || error instanceof ProtocolException
+                || error instanceof FileNotFoundException
+                || error instanceof CodePushInvalidUpdateException
+                || error instanceof CodePushMalformedDataException);
+    }
+
+    @Override
+    public long getRetryDelay(int retryCount) {
+        long cap = mBaseDelay << Math.min(Math.max(retryCount - 1, 0), 30);
+        if (cap <= 0 || cap > mMaxDelay) {
+            cap = mMaxDelay;
+        }
+
+        synchronized (mRandom) {
+            return (long) (mRandom.nextDouble() * cap);
+        }
+    }
+
+    @Override
+    public int getMaxRetries() {
+        return mMaxRetries;
+    }
+
+    @Override
+    public long getTotalTimeBudget() {
+        return mTotalTimeBudget;
+    }
+
+    @Override
+    public int getConnectTimeout() {
+        return mAttemptTimeout;
+    }
+
+    @Override
+    public int getReadTimeout() {
+        return mAttemptTimeout;
+    }
+}
@@ -0,0 +1,17 @@
+package com.microsoft.codepush.react;
+
+import java.io.IOException;
+
+public class CodePushHttpException extends IOException {
+
+    private final int mStatusCode;
+
+    public CodePushHttpException(String url, int statusCode) {
+        super("Request to " + url + " failed with HTTP status " + statusCode);
+        mStatusCode = statusCode;
+    }
+
+    public int getStatusCode() {
+        return mStatusCode;
+    }
+}
@@ -0,0 +1,39 @@
+package com.microsoft.codepush.react;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+
+/**
+ * Performs the HTTP requests made by the native update manager. Implementations are expected
+ * to reuse connections across requests, so a retry or a follow-up range request does not pay
+ * for a new TCP and TLS handshake. Set one with {@link CodePush#setHttpTransport(CodePushHttpTransport)}.
+ */
+public interface CodePushHttpTransport {
+
+    /**
+     * Sends a GET request without following redirects. The returned response must be closed.
+     */
+    Response get(String url, Map<String, String> headers, int connectTimeout, int readTimeout) throws IOException;
+
+    interface Response extends Closeable {
+        int getStatusCode() throws IOException;
+
+        String getHeader(String name);
+
+        /**
+         * Returns the Content-Length of the response, or -1 when it is unknown.
+         */
+        long getContentLength();
+
+        InputStream getBody() throws IOException;
+
+        /**
+         * Releases the response, returning its connection to the pool when the body was
+         * fully consumed.
+         */
+        @Override
+        void close();
+    }
+}
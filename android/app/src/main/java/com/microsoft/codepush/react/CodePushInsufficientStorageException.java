@@ -0,0 +1,22 @@
+package com.microsoft.codepush.react;
+
+public class CodePushInsufficientStorageException extends RuntimeException {
+
+    private final long mRequiredBytes;
+    private final long mMissingBytes;
+
+    public CodePushInsufficientStorageException(long requiredBytes, long missingBytes) {
+        super("Not enough storage to install the update: " + requiredBytes + " bytes are needed, "
+                + missingBytes + " more than can be used.");
+        mRequiredBytes = requiredBytes;
+        mMissingBytes = missingBytes;
+    }
+
+    public long getRequiredBytes() {
+        return mRequiredBytes;
+    }
+
+    public long getMissingBytes() {
+        return mMissingBytes;
+    }
+}
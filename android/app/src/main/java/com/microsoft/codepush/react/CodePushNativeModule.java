@@ -459,14 +459,18 @@ public class CodePushNativeModule extends BaseJavaModule {
                                     .getJSModule(DeviceEventManagerModule.RCTDeviceEventEmitter.class)
                                     .emit(CodePushConstants.DOWNLOAD_PROGRESS_EVENT_NAME, latestDownloadProgress.createWritableMap());
                         }
-                    }, mCodePush.getPublicKey());
+                    }, mCodePush.getPublicKey(), mCodePush.getBinaryPackage());
 
                     JSONObject newPackage = mUpdateManager.getPackage(CodePushUtils.tryGetString(updatePackage, CodePushConstants.PACKAGE_HASH_KEY));
                     promise.resolve(CodePushUtils.convertJsonObjectToWritable(newPackage));
                 } catch (CodePushInvalidUpdateException e) {
                     CodePushUtils.log(e);
+                    mCodePush.awaitRollbackCleanup();
                     mSettingsManager.saveFailedUpdate(CodePushUtils.convertReadableToJsonObject(updatePackage));
                     promise.reject(e);
+                } catch (CodePushInsufficientStorageException e) {
+                    CodePushUtils.log(e);
+                    promise.reject(CodePushConstants.INSUFFICIENT_STORAGE_ERROR_CODE, e.getMessage(), e);
                 } catch (IOException | CodePushUnknownException e) {
                     CodePushUtils.log(e);
                     promise.reject(e);
@@ -491,6 +495,8 @@ public class CodePushNativeModule extends BaseJavaModule {
             // The binary hash may be null in debug builds
             if (mBinaryContentsHash != null) {
                 configMap.putString(CodePushConstants.PACKAGE_HASH_KEY, mBinaryContentsHash);
+                // Diff updates against the binary are only asked for once it is known to support them.
+                configMap.putBoolean(CodePushConstants.IS_BINARY_DIFF_BASE_KEY, mCodePush.isBinaryDiffBase(mBinaryContentsHash));
             }
 
             promise.resolve(configMap);
@@ -576,6 +582,7 @@ public class CodePushNativeModule extends BaseJavaModule {
                 try {
                     if (mCodePush.needToReportRollback()) {
                         mCodePush.setNeedToReportRollback(false);
+                        mCodePush.awaitRollbackCleanup();
                         JSONArray failedUpdates = mSettingsManager.getFailedUpdates();
                         if (failedUpdates != null && failedUpdates.length() > 0) {
                             try {
@@ -716,6 +723,7 @@ public class CodePushNativeModule extends BaseJavaModule {
     @ReactMethod
     public void isFailedUpdate(String packageHash, Promise promise) {
         try {
+            mCodePush.awaitRollbackCleanup();
             promise.resolve(mSettingsManager.isFailedHash(packageHash));
         } catch (CodePushUnknownException e) {
             CodePushUtils.log(e);
@@ -0,0 +1,101 @@
+package com.microsoft.codepush.react;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.ResponseBody;
+
+/**
+ * Transport backed by the host app's OkHttpClient, so update downloads share its HTTP/2
+ * connection pool, DNS cache and interceptors.
+ */
+public class CodePushOkHttpTransport implements CodePushHttpTransport {
+
+    private final OkHttpClient mClient;
+    private OkHttpClient mDownloadClient;
+    private int mConnectTimeout = -1;
+    private int mReadTimeout = -1;
+
+    public CodePushOkHttpTransport(OkHttpClient client) {
+        mClient = client;
+    }
+
+    @Override
+    public Response get(String url, Map<String, String> headers, int connectTimeout, int readTimeout) throws IOException {
+        Request.Builder requestBuilder;
+        try {
+            requestBuilder = new Request.Builder().url(url).get();
+        } catch (IllegalArgumentException e) {
+            MalformedURLException malformedURLException = new MalformedURLException(url);
+            malformedURLException.initCause(e);
+            throw malformedURLException;
+        }
+
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            requestBuilder.header(header.getKey(), header.getValue());
+        }
+
+        okhttp3.Response response = getDownloadClient(connectTimeout, readTimeout).newCall(requestBuilder.build()).execute();
+        return new OkHttpResponse(response);
+    }
+
+    // Derived clients share the connection pool, dispatcher and DNS of the original one.
+    private synchronized OkHttpClient getDownloadClient(int connectTimeout, int readTimeout) {
+        if (mDownloadClient == null || mConnectTimeout != connectTimeout || mReadTimeout != readTimeout) {
+            mDownloadClient = mClient.newBuilder()
+                    .connectTimeout(connectTimeout, TimeUnit.MILLISECONDS)
+                    .readTimeout(readTimeout, TimeUnit.MILLISECONDS)
+                    .followRedirects(false)
+                    .followSslRedirects(false)
+                    .build();
+            mConnectTimeout = connectTimeout;
+            mReadTimeout = readTimeout;
+        }
+
+        return mDownloadClient;
+    }
+
+    private static class OkHttpResponse implements Response {
+        private final okhttp3.Response mResponse;
+
+        OkHttpResponse(okhttp3.Response response) {
+            mResponse = response;
+        }
+
+        @Override
+        public int getStatusCode() {
+            return mResponse.code();
+        }
+
+        @Override
+        public String getHeader(String name) {
+            return mResponse.header(name);
+        }
+
+        @Override
+        public long getContentLength() {
+            ResponseBody body = mResponse.body();
+            return body != null ? body.contentLength() : -1;
+        }
+
+        @Override
+        public InputStream getBody() throws IOException {
+            ResponseBody body = mResponse.body();
+            if (body == null) {
+                throw new IOException("Response has no body.");
+            }
+
+            return body.byteStream();
+        }
+
+        @Override
+        public void close() {
+            mResponse.close();
+        }
+    }
+}
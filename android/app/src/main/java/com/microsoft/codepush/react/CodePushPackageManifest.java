@@ -0,0 +1,183 @@
+package com.microsoft.codepush.react;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+// The SHA-256 hash of every file in a package folder, keyed by its path relative to the folder.
+// It is recorded while a package is written, so that the folder hash can be verified without
+// reading the files back, and saved next to app.json as the file index of the package, so that
+// later updates need not scan it. Files also keep their size and, if they were extracted from a
+// zip, the CRC-32 of their entry.
+class CodePushPackageManifest {
+
+    private static final String HASH_KEY = "hash";
+    private static final String CRC_KEY = "crc";
+    private static final String SIZE_KEY = "size";
+
+    private final String mPackageFolderPath;
+    private final Map<String, String> mFileHashes = new ConcurrentHashMap<>();
+    // Each value is {crc, size}, where crc is -1 unless the file was extracted from a zip entry.
+    private final Map<String, long[]> mEntryChecksums = new ConcurrentHashMap<>();
+    // Files taken from another package because their zip entry has the same CRC-32 and size.
+    private final Set<String> mReusedFiles = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    public CodePushPackageManifest() {
+        this(null);
+    }
+
+    private CodePushPackageManifest(String packageFolderPath) {
+        mPackageFolderPath = packageFolderPath;
+    }
+
+    // Loads the manifest saved in the given package folder, or returns null if there is none.
+    public static CodePushPackageManifest load(String packageFolderPath) {
+        String filePath = CodePushUtils.appendPathComponent(packageFolderPath, CodePushConstants.PACKAGE_HASHES_FILE_NAME);
+        if (!FileUtils.fileAtPathExists(filePath)) {
+            return null;
+        }
+
+        try {
+            JSONObject json = CodePushUtils.getJsonObjectFromFile(filePath);
+            CodePushPackageManifest manifest = new CodePushPackageManifest(packageFolderPath);
+            Iterator<String> relativePaths = json.keys();
+            while (relativePaths.hasNext()) {
+                String relativePath = relativePaths.next();
+                JSONObject fileJson = json.optJSONObject(relativePath);
+                if (fileJson == null) {
+                    manifest.put(relativePath, json.getString(relativePath));
+                } else {
+                    manifest.put(relativePath, fileJson.getString(HASH_KEY), fileJson.optLong(CRC_KEY, -1), fileJson.optLong(SIZE_KEY, -1));
+                }
+            }
+            return manifest;
+        } catch (IOException | JSONException | CodePushMalformedDataException e) {
+            CodePushUtils.log("Ignoring unreadable package manifest " + e.getMessage());
+            return null;
+        }
+    }
+
+    // The folder the manifest was loaded from, or null for a package still being written.
+    public String getPackageFolderPath() {
+        return mPackageFolderPath;
+    }
+
+    public void put(String relativePath, String hash) {
+        mFileHashes.put(relativePath, hash);
+        mEntryChecksums.remove(relativePath);
+        mReusedFiles.remove(relativePath);
+    }
+
+    public void put(String relativePath, String hash, long crc, long size) {
+        mFileHashes.put(relativePath, hash);
+        mReusedFiles.remove(relativePath);
+        if (size >= 0) {
+            mEntryChecksums.put(relativePath, new long[]{crc, size});
+        } else {
+            mEntryChecksums.remove(relativePath);
+        }
+    }
+
+    // Copies what is recorded for the file in another manifest.
+    public void putFrom(CodePushPackageManifest manifest, String relativePath) {
+        long[] entryChecksum = manifest.mEntryChecksums.get(relativePath);
+        if (entryChecksum != null) {
+            put(relativePath, manifest.get(relativePath), entryChecksum[0], entryChecksum[1]);
+        } else {
+            put(relativePath, manifest.get(relativePath));
+        }
+    }
+
+    // Copies what is recorded for a file reused from another package in place of a zip entry with
+    // the same CRC-32 and size. A different file can share both, so the copy is marked as reused.
+    public void putReused(CodePushPackageManifest manifest, String relativePath) {
+        putFrom(manifest, relativePath);
+        mReusedFiles.add(relativePath);
+    }
+
+    public boolean hasReusedFiles() {
+        return !mReusedFiles.isEmpty();
+    }
+
+    public String get(String relativePath) {
+        return mFileHashes.get(relativePath);
+    }
+
+    public long getSize(String relativePath) {
+        long[] entryChecksum = mEntryChecksums.get(relativePath);
+        return entryChecksum != null ? entryChecksum[1] : -1;
+    }
+
+    // Returns the shortest relative path of a file with the given name, or null if there is none.
+    public String findFile(String fileName) {
+        String foundPath = null;
+        for (String relativePath : mFileHashes.keySet()) {
+            if ((relativePath.equals(fileName) || relativePath.endsWith("/" + fileName))
+                    && !CodePushUpdateUtils.isHashIgnored(relativePath)
+                    && (foundPath == null || relativePath.length() < foundPath.length()
+                    || (relativePath.length() == foundPath.length() && relativePath.compareTo(foundPath) < 0))) {
+                foundPath = relativePath;
+            }
+        }
+        return foundPath;
+    }
+
+    // Returns whether the file was extracted from a zip entry with the given CRC-32 and size.
+    public boolean hasEntry(String relativePath, long crc, long size) {
+        long[] entryChecksum = mEntryChecksums.get(relativePath);
+        return entryChecksum != null && crc >= 0 && entryChecksum[0] == crc && entryChecksum[1] == size;
+    }
+
+    public void remove(String relativePath) {
+        mFileHashes.remove(relativePath);
+        mEntryChecksums.remove(relativePath);
+        mReusedFiles.remove(relativePath);
+    }
+
+    public Set<String> getRelativePaths() {
+        return mFileHashes.keySet();
+    }
+
+    // Returns the unsorted <relativeFilePath>:<sha256FileHash> entries the folder hash is computed from.
+    public ArrayList<String> getHashEntries() {
+        ArrayList<String> entries = new ArrayList<>(mFileHashes.size());
+        for (Map.Entry<String, String> fileHash : mFileHashes.entrySet()) {
+            if (!CodePushUpdateUtils.isHashIgnored(fileHash.getKey())) {
+                entries.add(fileHash.getKey() + ":" + fileHash.getValue());
+            }
+        }
+        return entries;
+    }
+
+    public void save(String filePath) {
+        JSONObject json = new JSONObject();
+        for (Map.Entry<String, String> fileHash : mFileHashes.entrySet()) {
+            long[] entryChecksum = mEntryChecksums.get(fileHash.getKey());
+            if (entryChecksum == null) {
+                CodePushUtils.setJSONValueForKey(json, fileHash.getKey(), fileHash.getValue());
+            } else {
+                JSONObject fileJson = new JSONObject();
+                CodePushUtils.setJSONValueForKey(fileJson, HASH_KEY, fileHash.getValue());
+                if (entryChecksum[0] >= 0) {
+                    CodePushUtils.setJSONValueForKey(fileJson, CRC_KEY, entryChecksum[0]);
+                }
+                CodePushUtils.setJSONValueForKey(fileJson, SIZE_KEY, entryChecksum[1]);
+                CodePushUtils.setJSONValueForKey(json, fileHash.getKey(), fileJson);
+            }
+        }
+
+        try {
+            FileUtils.writeStringToFileAtomically(json.toString(), filePath);
+        } catch (IOException e) {
+            // Without it the next diff update only has to hash the folder again.
+            CodePushUtils.log("Unable to save package manifest " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package com.microsoft.codepush.react;
+
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+// Index of the verified package folders kept in the CodePush folder after they stop being the
+// current or previous package, so that installing one of them again, e.g. after a rollback on the
+// server, needs no download. It is saved as packages.json and keyed by package hash. Once more
+// packages or bytes are stored than allowed, the least recently used ones are evicted.
+class CodePushPackageStore {
+
+    private static final String SIZE_KEY = "size";
+    private static final String LAST_USED_KEY = "lastUsed";
+
+    private final String mCodePushPath;
+    private final CodePushTrash mTrash;
+    private final JSONObject mIndex;
+
+    private CodePushPackageStore(String codePushPath, CodePushTrash trash, JSONObject index) {
+        mCodePushPath = codePushPath;
+        mTrash = trash;
+        mIndex = index;
+    }
+
+    public static boolean exists(String codePushPath) {
+        return FileUtils.fileAtPathExists(getIndexFilePath(codePushPath));
+    }
+
+    public static CodePushPackageStore load(String codePushPath, CodePushTrash trash) {
+        String indexFilePath = getIndexFilePath(codePushPath);
+        JSONObject index = new JSONObject();
+        if (FileUtils.fileAtPathExists(indexFilePath)) {
+            try {
+                index = CodePushUtils.getJsonObjectFromFile(indexFilePath);
+            } catch (IOException | CodePushMalformedDataException e) {
+                // The folders are still on disk, they are only no longer reused.
+                CodePushUtils.log("Ignoring unreadable package store index " + e.getMessage());
+            }
+        }
+
+        return new CodePushPackageStore(codePushPath, trash, index);
+    }
+
+    public boolean contains(String packageHash) {
+        return packageHash != null && mIndex.has(packageHash);
+    }
+
+    // Returns whether the package is stored and its folder is complete and still matches its hash.
+    // The recorded file index is compared instead of reading the files back.
+    public boolean isAvailable(String packageHash) {
+        if (!contains(packageHash)) {
+            return false;
+        }
+
+        String packageFolderPath = getPackageFolderPath(packageHash);
+        if (!FileUtils.fileAtPathExists(CodePushUtils.appendPathComponent(packageFolderPath, CodePushConstants.PACKAGE_FILE_NAME))) {
+            return false;
+        }
+
+        CodePushPackageManifest manifest = CodePushPackageManifest.load(packageFolderPath);
+        return manifest != null && CodePushUpdateUtils.isManifestHashEqual(manifest, packageHash);
+    }
+
+    // Adds a package whose folder was completely written. Only packages with a file index that
+    // matches their hash are stored.
+    public void add(String packageHash, CodePushPackageManifest manifest) {
+        if (packageHash == null || manifest == null || !CodePushUpdateUtils.isManifestHashEqual(manifest, packageHash)) {
+            return;
+        }
+
+        JSONObject entry = new JSONObject();
+        // Files hard linked from other packages are counted in each of them.
+        CodePushUtils.setJSONValueForKey(entry, SIZE_KEY, getFolderSize(new File(getPackageFolderPath(packageHash))));
+        CodePushUtils.setJSONValueForKey(entry, LAST_USED_KEY, System.currentTimeMillis());
+        CodePushUtils.setJSONValueForKey(mIndex, packageHash, entry);
+    }
+
+    public void touch(String packageHash) {
+        JSONObject entry = mIndex.optJSONObject(packageHash);
+        if (entry != null) {
+            CodePushUtils.setJSONValueForKey(entry, LAST_USED_KEY, System.currentTimeMillis());
+        }
+    }
+
+    public void remove(String packageHash) {
+        if (packageHash != null) {
+            mIndex.remove(packageHash);
+        }
+    }
+
+    // Moves the least recently used packages to the trash until no more than maxPackageCount
+    // packages and maxTotalBytes bytes are stored. Pinned packages count against the limits but
+    // are never evicted.
+    public void evict(Set<String> pinnedPackageHashes, int maxPackageCount, long maxTotalBytes) {
+        final List<String> packageHashes = new ArrayList<>();
+        long totalBytes = 0;
+        Iterator<String> keys = mIndex.keys();
+        while (keys.hasNext()) {
+            String packageHash = keys.next();
+            packageHashes.add(packageHash);
+            totalBytes += getEntry(packageHash).optLong(SIZE_KEY, 0);
+        }
+
+        Collections.sort(packageHashes, new Comparator<String>() {
+            @Override
+            public int compare(String first, String second) {
+                long firstLastUsed = getEntry(first).optLong(LAST_USED_KEY, 0);
+                long secondLastUsed = getEntry(second).optLong(LAST_USED_KEY, 0);
+                return firstLastUsed < secondLastUsed ? -1 : (firstLastUsed == secondLastUsed ? 0 : 1);
+            }
+        });
+
+        int packageCount = packageHashes.size();
+        for (String packageHash : packageHashes) {
+            if (packageCount <= maxPackageCount && totalBytes <= maxTotalBytes) {
+                break;
+            } else if (pinnedPackageHashes.contains(packageHash)) {
+                continue;
+            }
+
+            CodePushUtils.log("Evicting package " + packageHash + " from the package store.");
+            totalBytes -= getEntry(packageHash).optLong(SIZE_KEY, 0);
+            packageCount--;
+            mIndex.remove(packageHash);
+            mTrash.moveToTrash(getPackageFolderPath(packageHash));
+        }
+    }
+
+    public void save() {
+        try {
+            FileUtils.writeStringToFileAtomically(mIndex.toString(), getIndexFilePath(mCodePushPath));
+        } catch (IOException e) {
+            CodePushUtils.log("Unable to save package store index " + e.getMessage());
+        }
+    }
+
+    // Deletes the index. The folders of the packages it still lists are left in place.
+    public void delete() {
+        FileUtils.deleteFileAtPathSilently(getIndexFilePath(mCodePushPath));
+    }
+
+    private static String getIndexFilePath(String codePushPath) {
+        return CodePushUtils.appendPathComponent(codePushPath, CodePushConstants.PACKAGE_STORE_FILE_NAME);
+    }
+
+    private JSONObject getEntry(String packageHash) {
+        JSONObject entry = mIndex.optJSONObject(packageHash);
+        return entry != null ? entry : new JSONObject();
+    }
+
+    private String getPackageFolderPath(String packageHash) {
+        return CodePushUtils.appendPathComponent(mCodePushPath, packageHash);
+    }
+
+    private static long getFolderSize(File folder) {
+        File[] files = folder.listFiles();
+        if (files == null) {
+            return 0;
+        }
+
+        long size = 0;
+        for (File file : files) {
+            size += file.isDirectory() ? getFolderSize(file) : file.length();
+        }
+        return size;
+    }
+}
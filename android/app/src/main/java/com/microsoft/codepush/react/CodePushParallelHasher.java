@@ -0,0 +1,63 @@
+package com.microsoft.codepush.react;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+// Hashes files on a fork join pool with one thread per core. ForkJoinPool only exists on Android
+// from 5.0 (API 21), so it is kept out of CodePushUpdateUtils, which must load on older devices,
+// and callers check Build.VERSION.SDK_INT >= LOLLIPOP before using this class.
+class CodePushParallelHasher {
+
+    // Files hashed by a single fork join task before it stops splitting its share.
+    private static final int HASH_TASK_FILE_COUNT = 8;
+
+    private static ForkJoinPool sHashPool;
+
+    private CodePushParallelHasher() {
+    }
+
+    // Records the hash of every file in the manifest under the relative path at the same index.
+    public static void hashFiles(List<String> relativePaths, List<File> files, CodePushPackageManifest manifest) {
+        getHashPool().invoke(new HashFilesTask(relativePaths, files, 0, files.size(), manifest));
+    }
+
+    private static synchronized ForkJoinPool getHashPool() {
+        if (sHashPool == null) {
+            sHashPool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        }
+        return sHashPool;
+    }
+
+    // Hashes a range of files, splitting it in halves until the ranges are small enough.
+    private static class HashFilesTask extends RecursiveAction {
+        private final List<String> mRelativePaths;
+        private final List<File> mFiles;
+        private final int mStart;
+        private final int mEnd;
+        private final CodePushPackageManifest mManifest;
+
+        HashFilesTask(List<String> relativePaths, List<File> files, int start, int end, CodePushPackageManifest manifest) {
+            mRelativePaths = relativePaths;
+            mFiles = files;
+            mStart = start;
+            mEnd = end;
+            mManifest = manifest;
+        }
+
+        @Override
+        protected void compute() {
+            if (mEnd - mStart <= HASH_TASK_FILE_COUNT) {
+                for (int i = mStart; i < mEnd; i++) {
+                    mManifest.put(mRelativePaths.get(i), CodePushUpdateUtils.computeFileHash(mFiles.get(i)), -1, mFiles.get(i).length());
+                }
+                return;
+            }
+
+            int middle = (mStart + mEnd) >>> 1;
+            invokeAll(new HashFilesTask(mRelativePaths, mFiles, mStart, middle, mManifest),
+                    new HashFilesTask(mRelativePaths, mFiles, middle, mEnd, mManifest));
+        }
+    }
+}
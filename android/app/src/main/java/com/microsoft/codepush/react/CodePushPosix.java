@@ -0,0 +1,71 @@
+package com.microsoft.codepush.react;
+
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.system.StructStat;
+
+import java.io.FileDescriptor;
+import java.io.IOException;
+
+// File system calls that need android.system, which only exists from Android 5.0 (API 21). Dalvik
+// rejects a whole class whose exception handlers name a class it cannot resolve, so these calls
+// are kept here, and callers check Build.VERSION.SDK_INT >= LOLLIPOP before using this class.
+// Errors are reported as IOException.
+class CodePushPosix {
+
+    static class FileStatus {
+        final long deviceId;
+        final long inode;
+        final long size;
+        final long linkCount;
+
+        private FileStatus(StructStat stat) {
+            deviceId = stat.st_dev;
+            inode = stat.st_ino;
+            size = stat.st_size;
+            linkCount = stat.st_nlink;
+        }
+    }
+
+    private CodePushPosix() {
+    }
+
+    public static void link(String oldPath, String newPath) throws IOException {
+        try {
+            Os.link(oldPath, newPath);
+        } catch (ErrnoException e) {
+            throw new IOException(e.getMessage(), e);
+        }
+    }
+
+    public static void rename(String oldPath, String newPath) throws IOException {
+        try {
+            Os.rename(oldPath, newPath);
+        } catch (ErrnoException e) {
+            throw new IOException(e.getMessage(), e);
+        }
+    }
+
+    public static FileStatus stat(String path) throws IOException {
+        try {
+            return new FileStatus(Os.stat(path));
+        } catch (ErrnoException e) {
+            throw new IOException(e.getMessage(), e);
+        }
+    }
+
+    // Directory entries can only be flushed through a raw descriptor.
+    public static void fsyncDirectory(String path) throws IOException {
+        try {
+            FileDescriptor directoryDescriptor = Os.open(path, OsConstants.O_RDONLY, 0);
+            try {
+                Os.fsync(directoryDescriptor);
+            } finally {
+                Os.close(directoryDescriptor);
+            }
+        } catch (ErrnoException e) {
+            throw new IOException(e.getMessage(), e);
+        }
+    }
+}
@@ -0,0 +1,23 @@
+package com.microsoft.codepush.react;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// The failed attempts of one package download, whichever way it is fetched and however many
+// requests run in parallel, which share the retries and the time budget of the retry policy.
+class CodePushRetryBudget {
+
+    private final CodePushRetryPolicy mRetryPolicy;
+    private final long mStartTime = System.currentTimeMillis();
+    private final AtomicInteger mRetried = new AtomicInteger(0);
+
+    public CodePushRetryBudget(CodePushRetryPolicy retryPolicy) {
+        mRetryPolicy = retryPolicy;
+    }
+
+    // Counts a failed attempt and waits for the backoff delay before the next one, or throws when
+    // the retry policy gives up.
+    public void awaitRetry(Throwable error) throws IOException {
+        CodePushUpdateManager.awaitRetry(mRetryPolicy, error, mRetried.incrementAndGet(), mStartTime);
+    }
+}
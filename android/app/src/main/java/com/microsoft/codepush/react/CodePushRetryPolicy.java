@@ -0,0 +1,30 @@
+package com.microsoft.codepush.react;
+
+/**
+ * Decides whether and when a failed download attempt is retried.
+ * Set a custom implementation with {@link CodePush#setRetryPolicy(CodePushRetryPolicy)}.
+ */
+public interface CodePushRetryPolicy {
+
+    /**
+     * Returns false for errors that cannot be fixed by trying again, e.g. a 404.
+     */
+    boolean isRetryable(Throwable error);
+
+    /**
+     * Returns the number of milliseconds to wait before the given retry, starting at 1.
+     */
+    long getRetryDelay(int retryCount);
+
+    int getMaxRetries();
+
+    /**
+     * Returns the maximum time in milliseconds spent on all attempts of one download,
+     * or 0 for no limit.
+     */
+    long getTotalTimeBudget();
+
+    int getConnectTimeout();
+
+    int getReadTimeout();
+}
@@ -0,0 +1,318 @@
+package com.microsoft.codepush.react;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Downloads a file as several byte ranges fetched in parallel, writing each range at its
+// offset in the destination file. Only used when the server answers a Range probe with 206.
+class CodePushSegmentedDownloader {
+
+    private static final int SEGMENT_BUFFER_SIZE = 1024 * 64;
+    private static final long JOURNAL_COMMIT_INTERVAL = 1024 * 1024;
+
+    private final String mDownloadUrlString;
+    private final File mDownloadFile;
+    private final int mSegmentCount;
+    private final long mMinSegmentSize;
+    private final CodePushRetryBudget mRetryBudget;
+    private final CodePushDownloadJournal mJournal;
+
+    private final AtomicLong mReceivedBytes = new AtomicLong(0);
+    private String mValidator;
+    private long mUncommittedBytes = 0;
+    private volatile boolean mIsStopped = false;
+
+    // The segments share the retry budget of the download, so that their failed attempts add up.
+    public CodePushSegmentedDownloader(String downloadUrlString, File downloadFile, int segmentCount,
+                                       long minSegmentSize, CodePushRetryBudget retryBudget, CodePushDownloadJournal journal) {
+        mDownloadUrlString = downloadUrlString;
+        mDownloadFile = downloadFile;
+        mSegmentCount = segmentCount;
+        mMinSegmentSize = minSegmentSize;
+        mRetryBudget = retryBudget;
+        mJournal = journal;
+    }
+
+    // Returns false without touching the download file if the server does not support
+    // ranges or the body is too small to split, so the caller can use the single stream path.
+    public boolean download(DownloadProgressCallback progressCallback) throws IOException {
+        long totalBytes = probeTotalBytes();
+        if (totalBytes <= 0) {
+            CodePushUtils.log("Server did not honor range probe, falling back to single stream download.");
+            mJournal.reset();
+            return false;
+        }
+
+        long[][] segmentRanges = mJournal.getSegments();
+        boolean isResuming = segmentRanges != null
+                && mJournal.getTotalBytes() == totalBytes
+                && mDownloadFile.length() == totalBytes
+                && (mValidator == null ? mJournal.getValidator() == null : mValidator.equals(mJournal.getValidator()));
+        if (isResuming) {
+            CodePushUtils.log("Resuming segmented download from journal.");
+        } else {
+            int segmentCount = (int) Math.min(mSegmentCount, totalBytes / Math.max(1, mMinSegmentSize));
+            if (segmentCount < 2) {
+                CodePushUtils.log("Package of " + totalBytes + " bytes is too small to split, falling back to single stream download.");
+                mJournal.reset();
+                return false;
+            }
+
+            long segmentSize = totalBytes / segmentCount;
+            segmentRanges = new long[segmentCount][];
+            for (int i = 0; i < segmentCount; i++) {
+                long start = i * segmentSize;
+                long end = (i == segmentCount - 1) ? totalBytes - 1 : start + segmentSize - 1;
+                segmentRanges[i] = new long[]{start, end, start};
+            }
+
+            mJournal.reset();
+            mJournal.setValidator(mValidator);
+            mJournal.setTotalBytes(totalBytes);
+            mJournal.setSegments(segmentRanges);
+            mJournal.save();
+        }
+
+        for (long[] segmentRange : segmentRanges) {
+            mReceivedBytes.addAndGet(segmentRange[2] - segmentRange[0]);
+        }
+
+        CodePushUtils.log("Downloading " + totalBytes + " bytes in " + segmentRanges.length + " segments.");
+        long startTime = System.currentTimeMillis();
+        RandomAccessFile randomAccessFile = new RandomAccessFile(mDownloadFile, "rw");
+        try {
+            randomAccessFile.setLength(totalBytes);
+        } finally {
+            randomAccessFile.close();
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(segmentRanges.length);
+        try {
+            List<Future<Void>> segments = new ArrayList<>();
+            for (int i = 0; i < segmentRanges.length; i++) {
+                segments.add(executor.submit(new SegmentTask(i, segmentRanges[i], totalBytes, progressCallback)));
+            }
+
+            for (Future<Void> segment : segments) {
+                segment.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CodePushUnknownException("Segmented download was interrupted.", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new CodePushUnknownException("Segmented download failed.", cause);
+        } finally {
+            // Once a segment fails, the others are stopped, and waited for so that none of them
+            // writes to the file or the journal after the download has returned.
+            mIsStopped = true;
+            executor.shutdownNow();
+            awaitTermination(executor);
+            mJournal.save();
+        }
+
+        mJournal.setSegments(null);
+        mJournal.setCommittedOffset(totalBytes);
+        mJournal.save();
+
+        CodePushUtils.log("Segmented download finished, " + (System.currentTimeMillis() - startTime) + " ms, " + mReceivedBytes.get() + "/" + totalBytes);
+        return true;
+    }
+
+    private static void awaitTermination(ExecutorService executor) {
+        boolean isInterrupted = false;
+        while (true) {
+            try {
+                executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+                break;
+            } catch (InterruptedException e) {
+                isInterrupted = true;
+            }
+        }
+
+        if (isInterrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private long probeTotalBytes() throws IOException {
+        CodePushHttpTransport.Response response = null;
+        try {
+            Map<String, String> headers = new HashMap<>();
+            headers.put("Range", "bytes=0-0");
+            headers.put("Accept-Encoding", "identity");
+            response = CodePushUpdateManager.sendDownloadRequest(mDownloadUrlString, headers);
+            if (response.getStatusCode() != HttpURLConnection.HTTP_PARTIAL) {
+                return -1;
+            }
+
+            mValidator = CodePushDownloadJournal.readValidator(response);
+            long totalBytes = parseContentRangeTotal(response.getHeader("Content-Range"));
+            // Drain the single byte so the connection can be reused by the first segment.
+            InputStream body = response.getBody();
+            while (body.read() != -1) ;
+            return totalBytes;
+        } catch (MalformedURLException e) {
+            throw e;
+        } catch (IOException e) {
+            CodePushUtils.log("Range probe failed " + e.getMessage());
+            return -1;
+        } finally {
+            if (response != null) response.close();
+        }
+    }
+
+    // Parses the complete length out of a "bytes <first>-<last>/<complete>" header.
+    static long parseContentRangeTotal(String contentRange) {
+        if (contentRange == null) {
+            return -1;
+        }
+
+        int slashIndex = contentRange.lastIndexOf('/');
+        if (slashIndex < 0 || slashIndex == contentRange.length() - 1) {
+            return -1;
+        }
+
+        try {
+            return Long.parseLong(contentRange.substring(slashIndex + 1).trim());
+        } catch (NumberFormatException e) {
+            // "*" is sent when the complete length is unknown.
+            return -1;
+        }
+    }
+
+    private void commitProgress(int segmentIndex, long position, int numBytes) {
+        // Positional channel writes bypass any user space buffer, so the journal may be
+        // advanced as soon as write() returns.
+        mJournal.setSegmentPosition(segmentIndex, position);
+        synchronized (mJournal) {
+            mUncommittedBytes += numBytes;
+            if (mUncommittedBytes >= JOURNAL_COMMIT_INTERVAL) {
+                mUncommittedBytes = 0;
+                mJournal.save();
+            }
+        }
+    }
+
+    private void reportProgress(DownloadProgressCallback progressCallback, long totalBytes, long receivedBytes) {
+        // The callback is not thread safe, so serialize the calls coming from segment workers.
+        synchronized (progressCallback) {
+            progressCallback.call(new DownloadProgress(totalBytes, receivedBytes));
+        }
+    }
+
+    // Writes its range through a channel of its own, as interrupting a thread that writes to a
+    // FileChannel closes the channel.
+    private class SegmentTask implements Callable<Void> {
+        private final int mIndex;
+        private final long mStart;
+        private final long mEnd;
+        private final long mResumePosition;
+        private final long mTotalBytes;
+        private final DownloadProgressCallback mProgressCallback;
+
+        SegmentTask(int index, long[] segmentRange, long totalBytes, DownloadProgressCallback progressCallback) {
+            mIndex = index;
+            mStart = segmentRange[0];
+            mEnd = segmentRange[1];
+            mResumePosition = segmentRange[2];
+            mTotalBytes = totalBytes;
+            mProgressCallback = progressCallback;
+        }
+
+        @Override
+        public Void call() throws IOException {
+            RandomAccessFile randomAccessFile = new RandomAccessFile(mDownloadFile, "rw");
+            try {
+                return download(randomAccessFile.getChannel());
+            } finally {
+                randomAccessFile.close();
+            }
+        }
+
+        private Void download(FileChannel channel) throws IOException {
+            long position = mResumePosition;
+            byte[] data = new byte[SEGMENT_BUFFER_SIZE];
+            while (position <= mEnd && !mIsStopped) {
+                CodePushHttpTransport.Response response = null;
+                InputStream bin = null;
+                try {
+                    Map<String, String> headers = new HashMap<>();
+                    headers.put("Range", "bytes=" + position + "-" + mEnd);
+                    headers.put("Accept-Encoding", "identity");
+                    if (mValidator != null) {
+                        headers.put("If-Range", mValidator);
+                    }
+                    response = CodePushUpdateManager.sendDownloadRequest(mDownloadUrlString, headers);
+                    int responseCode = response.getStatusCode();
+                    if (responseCode >= 400) {
+                        throw new CodePushHttpException(mDownloadUrlString, responseCode);
+                    } else if (responseCode != HttpURLConnection.HTTP_PARTIAL) {
+                        throw new IOException("Expected partial content for segment " + mStart + "-" + mEnd + ", got " + responseCode);
+                    }
+
+                    bin = new BufferedInputStream(response.getBody(), SEGMENT_BUFFER_SIZE);
+                    int numBytesRead;
+                    while (position <= mEnd && !mIsStopped && (numBytesRead = bin.read(data, 0, (int) Math.min(data.length, mEnd - position + 1))) >= 0) {
+                        ByteBuffer buffer = ByteBuffer.wrap(data, 0, numBytesRead);
+                        while (buffer.hasRemaining()) {
+                            position += channel.write(buffer, position);
+                        }
+
+                        commitProgress(mIndex, position, numBytesRead);
+                        reportProgress(mProgressCallback, mTotalBytes, mReceivedBytes.addAndGet(numBytesRead));
+                    }
+
+                    if (mIsStopped) {
+                        return null;
+                    } else if (position <= mEnd) {
+                        throw new IOException("Segment " + mStart + "-" + mEnd + " ended early at " + position);
+                    }
+
+                    return null;
+                } catch (IOException e) {
+                    if (mIsStopped || Thread.currentThread().isInterrupted()) {
+                        throw e;
+                    }
+
+                    CodePushUtils.log("Segment " + mStart + "-" + mEnd + " failed at " + position + " " + e.getMessage());
+                    mRetryBudget.awaitRetry(e);
+                } finally {
+                    if (bin != null) {
+                        try {
+                            bin.close();
+                        } catch (IOException e) {
+                            // Nothing to do, the response is released below.
+                        }
+                    }
+                    if (response != null) response.close();
+                }
+            }
+
+            return null;
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package com.microsoft.codepush.react;
+
+import android.os.Build;
+import android.os.StatFs;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+// Checks that the next step of an install fits in the free space of the device and in the
+// CodePush disk quota before anything is written, so that a device low on storage fails early
+// with a CodePushInsufficientStorageException instead of an IOException halfway through.
+class CodePushStorageManager {
+
+    // Left free on the device, so that installing an update never fills it up completely.
+    private static final long STORAGE_RESERVE_BYTES = 1024 * 1024 * 5;
+
+    private final File mCodePushFolder;
+    private final CodePushTrash mTrash;
+
+    public CodePushStorageManager(String codePushPath, CodePushTrash trash) {
+        mCodePushFolder = new File(codePushPath);
+        mTrash = trash;
+    }
+
+    // Makes sure that requiredBytes more bytes can be written to the CodePush folder. When they
+    // cannot, the reclaimer is run to give up space and the trash is emptied before checking again.
+    public void ensureSpace(long requiredBytes, Runnable reclaimer) {
+        long missingBytes = getMissingBytes(requiredBytes);
+        if (missingBytes <= 0) {
+            return;
+        }
+
+        CodePushUtils.log("Missing " + missingBytes + " of " + requiredBytes + " bytes needed, reclaiming space.");
+        reclaimer.run();
+        mTrash.awaitEmptied();
+        missingBytes = getMissingBytes(requiredBytes);
+        if (missingBytes > 0) {
+            throw new CodePushInsufficientStorageException(requiredBytes, missingBytes);
+        }
+    }
+
+    // Returns the size of the files in the zip once extracted, as listed in its central directory.
+    public static long getExtractedSize(File zipFile) throws IOException {
+        ZipFile archive = new ZipFile(zipFile);
+        try {
+            long extractedSize = 0;
+            Enumeration<? extends ZipEntry> entries = archive.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                // Sizes are only missing from malformed archives, count the compressed size then.
+                extractedSize += entry.getSize() >= 0 ? entry.getSize() : Math.max(0, entry.getCompressedSize());
+            }
+            return extractedSize;
+        } finally {
+            archive.close();
+        }
+    }
+
+    private long getMissingBytes(long requiredBytes) {
+        mCodePushFolder.mkdirs();
+        long missingBytes = requiredBytes + STORAGE_RESERVE_BYTES - getAvailableBytes();
+        long storageQuota = CodePush.getStorageQuota();
+        if (storageQuota > 0) {
+            long usedBytes = getFolderSize(mCodePushFolder, new HashSet<Long>());
+            missingBytes = Math.max(missingBytes, usedBytes + requiredBytes - storageQuota);
+        }
+        return missingBytes;
+    }
+
+    @SuppressWarnings("deprecation")
+    private long getAvailableBytes() {
+        StatFs statFs = new StatFs(mCodePushFolder.getPath());
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            return statFs.getAvailableBytes();
+        }
+
+        return (long) statFs.getAvailableBlocks() * statFs.getBlockSize();
+    }
+
+    // Counts files hard linked several times, e.g. to the blob store, once where links are supported.
+    private static long getFolderSize(File folder, Set<Long> countedInodes) {
+        File[] files = folder.listFiles();
+        if (files == null) {
+            return 0;
+        }
+
+        long size = 0;
+        for (File file : files) {
+            if (file.isDirectory()) {
+                size += getFolderSize(file, countedInodes);
+            } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+                try {
+                    CodePushPosix.FileStatus status = CodePushPosix.stat(file.getPath());
+                    if (status.linkCount <= 1 || countedInodes.add(status.inode)) {
+                        size += status.size;
+                    }
+                } catch (IOException e) {
+                    // The file was deleted while counting.
+                }
+            } else {
+                size += file.length();
+            }
+        }
+        return size;
+    }
+}
@@ -0,0 +1,99 @@
+package com.microsoft.codepush.react;
+
+import android.os.Process;
+
+import java.io.File;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Deletes folders off the calling thread. A folder is renamed into the trash folder, which takes
+// the same time whatever its size, and the trash is emptied by a low priority background thread.
+// The trash lives next to the CodePush folder rather than inside it, so that it is on the same
+// file system and clearUpdates can move the whole CodePush folder into it. Anything a killed
+// process left in the trash is removed the next time it is emptied.
+class CodePushTrash {
+
+    private static final ExecutorService sReaper = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "CodePushTrashReaper");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    private static final AtomicInteger sTrashedFolderCount = new AtomicInteger();
+
+    private final File mTrashFolder;
+
+    public CodePushTrash(String trashFolderPath) {
+        mTrashFolder = new File(trashFolderPath);
+    }
+
+    // Moves the folder out of the way and schedules its deletion, or deletes it right away if it
+    // cannot be renamed.
+    public void moveToTrash(String folderPath) {
+        if (folderPath == null) {
+            CodePushUtils.log("moveToTrash attempted with null folderPath");
+            return;
+        }
+
+        File folder = new File(folderPath);
+        if (!folder.exists()) {
+            return;
+        }
+
+        mTrashFolder.mkdirs();
+        // The process id keeps the names unique across launches, as the counter starts over.
+        File trashedFolder = new File(mTrashFolder, folder.getName() + "-" + Process.myPid() + "-"
+                + System.currentTimeMillis() + "-" + sTrashedFolderCount.incrementAndGet());
+        if (folder.renameTo(trashedFolder)) {
+            empty();
+        } else {
+            CodePushUtils.log("Unable to move " + folder.getName() + " to the trash, deleting it in place.");
+            FileUtils.deleteFileOrFolderSilently(folder);
+        }
+    }
+
+    // Runs the task on the reaper thread once the folders trashed so far are deleted.
+    public void runAfterEmptying(Runnable task) {
+        sReaper.execute(task);
+    }
+
+    // Blocks until the folders trashed so far are deleted and the tasks run after emptying are done.
+    public void awaitEmptied() {
+        Future<?> emptied = sReaper.submit(new Runnable() {
+            @Override
+            public void run() {
+            }
+        });
+        try {
+            emptied.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            CodePushUtils.log("Unable to wait for the trash to be emptied " + e.getMessage());
+        }
+    }
+
+    // Schedules the deletion of everything in the trash, including what previous launches left there.
+    public void empty() {
+        sReaper.execute(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                File[] trashedFolders = mTrashFolder.listFiles();
+                if (trashedFolders == null) {
+                    return;
+                }
+
+                for (File trashedFolder : trashedFolders) {
+                    FileUtils.deleteFileOrFolderSilently(trashedFolder);
+                }
+            }
+        });
+    }
+}
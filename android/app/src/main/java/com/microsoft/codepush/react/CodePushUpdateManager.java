@@ -1,31 +1,41 @@
 package com.microsoft.codepush.react;
 
-import android.os.Build;
-
 import org.json.JSONObject;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
-import java.net.URL;
+import java.net.ProtocolException;
 import java.nio.ByteBuffer;
 import java.util.Date;
-
-import javax.net.ssl.HttpsURLConnection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipInputStream;
 
 public class CodePushUpdateManager {
 
     private String mDocumentsDirectory;
-    private static final int HTTP_REQUEST_TIMEOUT = 60 * 1000;
-    private static final int HTTP_REQUEST_RETRIES = 20;
+    private final CodePushTrash mTrash;
+    private static final long JOURNAL_COMMIT_INTERVAL = 1024 * 1024;
 
 
     public CodePushUpdateManager(String documentsDirectory) {
         mDocumentsDirectory = documentsDirectory;
+        mTrash = new CodePushTrash(CodePushUtils.appendPathComponent(documentsDirectory, CodePushConstants.TRASH_FOLDER_NAME));
+        // Remove whatever a previous launch trashed but did not get to delete.
+        mTrash.empty();
+        collectUnusedBlobs();
     }
 
     private String getDownloadFilePath() {
@@ -36,6 +46,81 @@ public class CodePushUpdateManager {
         return CodePushUtils.appendPathComponent(getCodePushPath(), CodePushConstants.UNZIPPED_FOLDER_NAME);
     }
 
+    // Packages are assembled next to their final folder, so that moving them into place is a rename.
+    private String getPackageStagingFolderPath(String packageHash) {
+        return getPackageFolderPath(packageHash) + CodePushConstants.PACKAGE_STAGING_FOLDER_SUFFIX;
+    }
+
+    // Returns the package store, or null if only the current and previous packages are kept.
+    private CodePushPackageStore getPackageStore() {
+        if (CodePush.getMaxRetainedPackageCount() == 0) {
+            purgePackageStore();
+            return null;
+        }
+
+        return CodePushPackageStore.load(getCodePushPath(), mTrash);
+    }
+
+    // Once package retention is turned off, removes the packages a previous launch still kept in
+    // the package store, other than the current and previous one, and then the store itself, so
+    // that this is only done once.
+    private void purgePackageStore() {
+        if (!CodePushPackageStore.exists(getCodePushPath())) {
+            return;
+        }
+
+        CodePushPackageStore packageStore = CodePushPackageStore.load(getCodePushPath(), mTrash);
+        Set<String> pinnedPackageHashes = new HashSet<>();
+        pinnedPackageHashes.add(getCurrentPackageHash());
+        pinnedPackageHashes.add(getPreviousPackageHash());
+        packageStore.evict(pinnedPackageHashes, 0, 0);
+        packageStore.delete();
+        collectUnusedBlobs();
+    }
+
+    // Deletes the blobs of the packages trashed so far once they are deleted.
+    private void collectUnusedBlobs() {
+        if (!CodePushBlobStore.isSupported()) {
+            return;
+        }
+
+        final CodePushBlobStore blobStore = new CodePushBlobStore(getCodePushPath());
+        mTrash.runAfterEmptying(new Runnable() {
+            @Override
+            public void run() {
+                blobStore.collectGarbage();
+            }
+        });
+    }
+
+    // Gives up the space CodePush can do without while installing an update: packages other than
+    // the current and previous one, whether kept in the package store or left over, and their blobs.
+    private void reclaimSpace() {
+        String currentPackageHash = getCurrentPackageHash();
+        String previousPackageHash = getPreviousPackageHash();
+        CodePushPackageStore packageStore = getPackageStore();
+        if (packageStore != null) {
+            Set<String> pinnedPackageHashes = new HashSet<>();
+            pinnedPackageHashes.add(currentPackageHash);
+            pinnedPackageHashes.add(previousPackageHash);
+            packageStore.evict(pinnedPackageHashes, 0, 0);
+            packageStore.save();
+        }
+
+        File[] folders = new File(getCodePushPath()).listFiles();
+        if (folders != null) {
+            for (File folder : folders) {
+                String folderName = folder.getName();
+                if (folder.isDirectory() && CodePushUpdateUtils.isPackageHash(folderName)
+                        && !folderName.equals(currentPackageHash) && !folderName.equals(previousPackageHash)) {
+                    CodePushUtils.log("Reclaiming the space of package " + folderName);
+                    mTrash.moveToTrash(folder.getPath());
+                }
+            }
+        }
+        collectUnusedBlobs();
+    }
+
     private String getDocumentsDirectory() {
         return mDocumentsDirectory;
     }
@@ -71,7 +156,8 @@ public class CodePushUpdateManager {
 
     public void updateCurrentPackageInfo(JSONObject packageInfo) {
         try {
-            CodePushUtils.writeJsonToFile(packageInfo, getStatusFilePath());
+            // Replaced atomically, so that a crash never leaves the app without a package to load.
+            FileUtils.writeStringToFileAtomically(packageInfo.toString(), getStatusFilePath());
         } catch (IOException e) {
             // Should not happen.
             throw new CodePushUnknownException("Error updating current package info", e);
@@ -149,220 +235,733 @@ public class CodePushUpdateManager {
         }
     }
 
+    // Sends a download request through the configured transport, using the per-attempt
+    // timeouts of the configured retry policy.
+    static CodePushHttpTransport.Response sendDownloadRequest(String url, Map<String, String> headers) throws IOException {
+        CodePushRetryPolicy retryPolicy = CodePush.getRetryPolicy();
+        return CodePush.getHttpTransport().get(url, headers, retryPolicy.getConnectTimeout(), retryPolicy.getReadTimeout());
+    }
+
+    // Waits for the backoff delay before the given retry, or throws when the retry policy
+    // gives up, either because the error is fatal or because retries or time ran out.
+    static void awaitRetry(CodePushRetryPolicy retryPolicy, Throwable error, int retryCount, long startTime) throws IOException {
+        if (!retryPolicy.isRetryable(error)) {
+            CodePushUtils.log("Not retrying after fatal error " + error.getMessage());
+            if (error instanceof IOException) {
+                throw (IOException) error;
+            } else if (error instanceof RuntimeException) {
+                throw (RuntimeException) error;
+            }
+            throw new CodePushUnknownException("Download failed.", error);
+        }
+
+        if (retryCount > retryPolicy.getMaxRetries()) {
+            CodePushUtils.log("Exceed retry time [" + (retryCount - 1) + "], going down");
+            throw new CodePushUnknownException("Error while exceeding retry.", error);
+        }
+
+        long delay = retryPolicy.getRetryDelay(retryCount);
+        long timeBudget = retryPolicy.getTotalTimeBudget();
+        if (timeBudget > 0 && System.currentTimeMillis() + delay - startTime > timeBudget) {
+            CodePushUtils.log("Download time budget of " + timeBudget + " ms exhausted, going down");
+            throw new CodePushUnknownException("Error while exceeding retry time budget.", error);
+        }
+
+        CodePushUtils.log("Going to retry in " + delay + " ms, retried [" + (retryCount - 1) + "/" + retryPolicy.getMaxRetries() + "]");
+        try {
+            Thread.sleep(delay);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CodePushUnknownException("Interrupted while waiting to retry.", e);
+        }
+    }
+
     public void downloadPackage(JSONObject updatePackage, String expectedBundleFileName,
                                 DownloadProgressCallback progressCallback,
                                 String stringPublicKey) throws IOException {
+        downloadPackage(updatePackage, expectedBundleFileName, progressCallback, stringPublicKey, null);
+    }
 
+    // Diff updates are applied to the binary package, if one is given, rather than to the current package.
+    public void downloadPackage(JSONObject updatePackage, String expectedBundleFileName,
+                                DownloadProgressCallback progressCallback,
+                                String stringPublicKey, CodePushBinaryPackage binaryPackage) throws IOException {
+        if (!CodePush.isUnchangedFileReuseEnabled()) {
+            downloadPackage(updatePackage, expectedBundleFileName, progressCallback, stringPublicKey, binaryPackage, false);
+            return;
+        }
 
-                                    boolean isNextRetry = false;
-                                    int retried = 0;
-                                    long lastOffset = 0;
-                                    long totalBytes = 0;
-                                    byte[] header = new byte[4];
+        try {
+            downloadPackage(updatePackage, expectedBundleFileName, progressCallback, stringPublicKey, binaryPackage, true);
+        } catch (ReusedFileMismatchException e) {
+            // The downloaded package is kept until verified, so it is only staged again.
+            CodePushUtils.log("Package " + updatePackage.optString(CodePushConstants.PACKAGE_HASH_KEY, null)
+                    + " failed the data integrity check with reused files, staging it again without reusing files.");
+            downloadPackage(updatePackage, expectedBundleFileName, progressCallback, stringPublicKey, binaryPackage, false);
+        }
+    }
 
-        do{
-            String newUpdateHash = updatePackage.optString(CodePushConstants.PACKAGE_HASH_KEY, null);
-            String newUpdateFolderPath = getPackageFolderPath(newUpdateHash);
-            String newUpdateMetadataPath = CodePushUtils.appendPathComponent(newUpdateFolderPath, CodePushConstants.PACKAGE_FILE_NAME);
-            if (FileUtils.fileAtPathExists(newUpdateFolderPath)) {
-                // This removes any stale data in newPackageFolderPath that could have been left
-                // uncleared due to a crash or error during the download or install process.
-                FileUtils.deleteDirectoryAtPath(newUpdateFolderPath);
+    private void downloadPackage(JSONObject updatePackage, String expectedBundleFileName,
+                                 DownloadProgressCallback progressCallback, String stringPublicKey,
+                                 CodePushBinaryPackage binaryPackage, boolean isReuseEnabled) throws IOException {
+        String newUpdateHash = updatePackage.optString(CodePushConstants.PACKAGE_HASH_KEY, null);
+        String newUpdateFolderPath = getPackageFolderPath(newUpdateHash);
+        String newUpdateMetadataPath = CodePushUtils.appendPathComponent(newUpdateFolderPath, CodePushConstants.PACKAGE_FILE_NAME);
+        CodePushPackageStore packageStore = getPackageStore();
+        if (packageStore != null && packageStore.isAvailable(newUpdateHash)) {
+            JSONObject storedPackage = getPackage(newUpdateHash);
+            if (storedPackage != null) {
+                CodePushUtils.log("Package " + newUpdateHash + " is in the package store, skipping its download.");
+                CodePushUtils.setJSONValueForKey(updatePackage, CodePushConstants.RELATIVE_BUNDLE_PATH_KEY,
+                        storedPackage.optString(CodePushConstants.RELATIVE_BUNDLE_PATH_KEY, null));
+                // The stored package is in use, so its metadata must never be seen half written.
+                FileUtils.writeStringToFileAtomically(updatePackage.toString(), newUpdateMetadataPath);
+                packageStore.touch(newUpdateHash);
+                packageStore.save();
+                return;
             }
+        }
+
+        if (FileUtils.fileAtPathExists(newUpdateFolderPath)) {
+            // This removes any stale data in newPackageFolderPath that could have been left
+            // uncleared due to a crash or error during the download or install process.
+            mTrash.moveToTrash(newUpdateFolderPath);
+            if (packageStore != null && packageStore.contains(newUpdateHash)) {
+                packageStore.remove(newUpdateHash);
+                packageStore.save();
+            }
+        }
+
+        String stagingFolderPath = getPackageStagingFolderPath(newUpdateHash);
+        mTrash.moveToTrash(stagingFolderPath);
+        // Packages used to be extracted to a shared folder, which may be left over from an older version.
+        mTrash.moveToTrash(getUnzippedFolderPath());
+
+        String downloadUrlString = updatePackage.optString(CodePushConstants.DOWNLOAD_URL_KEY, null);
+        File downloadFolder = new File(getCodePushPath());
+        downloadFolder.mkdirs();
+        File downloadFile = new File(downloadFolder, CodePushConstants.DOWNLOAD_FILE_NAME);
+
+        // Pick up where an earlier attempt for the same package left off, possibly in a
+        // previous process.
+        File journalFile = new File(downloadFolder, CodePushConstants.DOWNLOAD_JOURNAL_FILE_NAME);
+        CodePushDownloadJournal journal = CodePushDownloadJournal.load(journalFile);
+        File transferFile = journal != null && journal.getContentEncoding() != null
+                ? new File(downloadFolder, CodePushConstants.DOWNLOAD_ENCODED_FILE_NAME)
+                : downloadFile;
+        if (journal == null || !journal.isFor(newUpdateHash, downloadUrlString) || !transferFile.exists()) {
+            journal = new CodePushDownloadJournal(journalFile, newUpdateHash, downloadUrlString);
+        } else {
+            CodePushUtils.log("Found download journal for " + newUpdateHash + ", committed offset " + journal.getCommittedOffset() + "/" + journal.getTotalBytes());
+        }
+
+        boolean isDownloaded = journal.isComplete() && downloadFile.length() == journal.getTotalBytes();
+        CodePushStorageManager storageManager = new CodePushStorageManager(getCodePushPath(), mTrash);
+        Runnable spaceReclaimer = new Runnable() {
+            @Override
+            public void run() {
+                reclaimSpace();
+            }
+        };
+        long packageSize = updatePackage.optLong(CodePushConstants.PACKAGE_SIZE_KEY, -1);
+        if (!isDownloaded && packageSize > 0) {
+            // The package size is the length of the download. Extracted, the package takes at
+            // least as much again, so check for both before the first byte is written.
+            storageManager.ensureSpace(Math.max(0, 2 * packageSize - journal.getCommittedOffset()), spaceReclaimer);
+        }
+        if (isDownloaded) {
+            CodePushUtils.log("Package was already downloaded completely, skipping download.");
+            progressCallback.call(new DownloadProgress(journal.getTotalBytes(), journal.getTotalBytes()));
+        }
+        boolean hasSingleStreamProgress = journal.getSegments() == null && journal.getCommittedOffset() > 0;
+        boolean isExtracted = false;
+        // File hashes are recorded as the package is extracted, so verification need not read it back.
+        CodePushPackageManifest packageManifest = new CodePushPackageManifest();
+        CodePushPackageManifest reusableManifest = null;
+        if (isReuseEnabled) {
+            // Entries that match a file of the current package are taken from it instead of being extracted.
+            String currentPackageFolderPath = getCurrentPackageFolderPath();
+            reusableManifest = currentPackageFolderPath == null ? null : CodePushPackageManifest.load(currentPackageFolderPath);
+        }
+        CodePushRetryBudget retryBudget = new CodePushRetryBudget(CodePush.getRetryPolicy());
+        if (!isDownloaded && !hasSingleStreamProgress && CodePush.isStreamingInstallEnabled()) {
+            // Extraction has to see the bytes in order, so segmented downloads are not used here.
+            isExtracted = downloadAndExtractPackage(downloadUrlString, downloadFile, stagingFolderPath, packageManifest, reusableManifest,
+                    journal, retryBudget, progressCallback);
+            isDownloaded = isExtracted;
+        } else if (!isDownloaded && !hasSingleStreamProgress && CodePush.getDownloadSegmentCount() > 1) {
+            try {
+                isDownloaded = new CodePushSegmentedDownloader(downloadUrlString, downloadFile,
+                        CodePush.getDownloadSegmentCount(), CodePush.getMinDownloadSegmentSize(), retryBudget, journal)
+                        .download(progressCallback);
+            } catch (MalformedURLException e) {
+                throw new CodePushMalformedDataException(downloadUrlString, e);
+            }
+        } else if (journal.getSegments() != null) {
+            // A segmented download cannot be continued by the single stream path.
+            journal.reset();
+        }
+
+        if (!isDownloaded) {
+            downloadFileWithResume(downloadUrlString, downloadFile, journal, retryBudget, progressCallback);
+        }
+
+        boolean isZstdPackage = !isExtracted && hasMagic(downloadFile, CodePushZstdPackage.MAGIC);
+        boolean isZip = isExtracted || isZstdPackage || hasMagic(downloadFile, 0x504b0304);
+        if (isZip) {
+            // The package is assembled and verified in its staging folder, which is only renamed
+            // to the package folder once complete, so a crash never leaves a partial package.
+            if (isZstdPackage) {
+                CodePushZstdPackage zstdPackage = CodePushZstdPackage.open(downloadFile);
+                storageManager.ensureSpace(zstdPackage.getExtractedSize(), spaceReclaimer);
+                zstdPackage.extract(stagingFolderPath, packageManifest, reusableManifest);
+            } else if (!isExtracted) {
+                storageManager.ensureSpace(CodePushStorageManager.getExtractedSize(downloadFile), spaceReclaimer);
+                // Unzip the downloaded file, which is deleted once the package is verified.
+                if (CodePush.isParallelUnzipEnabled()) {
+                    FileUtils.unzipFileInParallel(downloadFile, stagingFolderPath, packageManifest, reusableManifest);
+                } else {
+                    FileUtils.unzipFile(downloadFile, stagingFolderPath, packageManifest, reusableManifest);
+                }
+            }
+            boolean hasReusedFiles = packageManifest.hasReusedFiles();
+
+            // Merge contents with current update based on the manifest
+            String diffManifestFilePath = CodePushUtils.appendPathComponent(stagingFolderPath,
+                    CodePushConstants.DIFF_MANIFEST_FILE_NAME);
+            boolean isDiffUpdate = FileUtils.fileAtPathExists(diffManifestFilePath);
+            if (isDiffUpdate && binaryPackage != null) {
+                CodePushUtils.log("Applying diff update to the contents of the binary.");
+                CodePushUpdateUtils.copyNecessaryFilesFromBinary(diffManifestFilePath, binaryPackage, stagingFolderPath, packageManifest);
+                CodePushUpdateUtils.applyPatches(diffManifestFilePath, stagingFolderPath, packageManifest);
+                CodePushUpdateUtils.syncFiles(diffManifestFilePath, stagingFolderPath, packageManifest, retryBudget);
+                new File(diffManifestFilePath).delete();
+                packageManifest.remove(CodePushConstants.DIFF_MANIFEST_FILE_NAME);
+            } else if (isDiffUpdate) {
+                String currentPackageFolderPath = getCurrentPackageFolderPath();
+                CodePushUpdateUtils.copyNecessaryFilesFromCurrentPackage(diffManifestFilePath, currentPackageFolderPath, stagingFolderPath);
+                // Patches and block signatures apply to the files just taken from the current package.
+                CodePushUpdateUtils.applyPatches(diffManifestFilePath, stagingFolderPath, packageManifest);
+                CodePushUpdateUtils.syncFiles(diffManifestFilePath, stagingFolderPath, packageManifest, retryBudget);
+                File diffManifestFile = new File(diffManifestFilePath);
+                diffManifestFile.delete();
+                packageManifest.remove(CodePushConstants.DIFF_MANIFEST_FILE_NAME);
+                packageManifest = mergeCurrentPackageManifest(currentPackageFolderPath, stagingFolderPath, packageManifest);
+            }
+
+            // For zip updates, we need to find the relative path to the jsBundle and save it in the
+            // metadata so that we can find and run it easily the next time.
+            // The file index recorded during extraction already lists every file, so the
+            // folder is only walked when no complete index is available.
+            String relativeBundlePath = packageManifest != null
+                    ? packageManifest.findFile(expectedBundleFileName)
+                    : CodePushUpdateUtils.findJSBundleInUpdateContents(stagingFolderPath, expectedBundleFileName);
+
+            if (relativeBundlePath == null) {
+                throw new CodePushInvalidUpdateException("Update is invalid - A JS bundle file named \"" + expectedBundleFileName + "\" could not be found within the downloaded contents. Please check that you are releasing your CodePush updates using the exact same JS bundle file name that was shipped with your app's binary.");
+            } else {
+                if (isDiffUpdate) {
+                    CodePushUtils.log("Applying diff update.");
+                } else {
+                    CodePushUtils.log("Applying full update.");
+                }
+
+                boolean isSignatureVerificationEnabled = (stringPublicKey != null);
+
+                String signaturePath = CodePushUpdateUtils.getSignatureFilePath(stagingFolderPath);
+                boolean isSignatureAppearedInBundle = FileUtils.fileAtPathExists(signaturePath);
+
+                if (isSignatureVerificationEnabled) {
+                    if (isSignatureAppearedInBundle) {
+                        packageManifest = verifyStagedPackage(stagingFolderPath, newUpdateHash, packageManifest, hasReusedFiles);
+                        CodePushUpdateUtils.verifyUpdateSignature(stagingFolderPath, newUpdateHash, stringPublicKey);
+                    } else {
+                        throw new CodePushInvalidUpdateException(
+                                "Error! Public key was provided but there is no JWT signature within app bundle to verify. " +
+                                        "Possible reasons, why that might happen: \n" +
+                                        "1. You've been released CodePush bundle update using version of CodePush CLI that is not support code signing.\n" +
+                                        "2. You've been released CodePush bundle update without providing --privateKeyPath option."
+                        );
+                    }
+                } else {
+                    if (isSignatureAppearedInBundle) {
+                        CodePushUtils.log(
+                                "Warning! JWT signature exists in codepush update but code integrity check couldn't be performed because there is no public key configured. " +
+                                        "Please ensure that public key is properly configured within your application."
+                        );
+                        packageManifest = verifyStagedPackage(stagingFolderPath, newUpdateHash, packageManifest, hasReusedFiles);
+                    } else if (isDiffUpdate || hasReusedFiles) {
+                        packageManifest = verifyStagedPackage(stagingFolderPath, newUpdateHash, packageManifest, hasReusedFiles);
+                    }
+                }
+
+                if (packageManifest != null) {
+                    packageManifest.save(CodePushUtils.appendPathComponent(stagingFolderPath, CodePushConstants.PACKAGE_HASHES_FILE_NAME));
+                }
+
+                CodePushUtils.setJSONValueForKey(updatePackage, CodePushConstants.RELATIVE_BUNDLE_PATH_KEY, relativeBundlePath);
+            }
+
+            FileUtils.syncWrittenFiles(stagingFolderPath);
+            if (packageManifest != null && CodePush.isFileDeduplicationEnabled()) {
+                new CodePushBlobStore(getCodePushPath()).addPackage(stagingFolderPath, packageManifest);
+            }
+
+            if (!isExtracted) {
+                FileUtils.deleteFileOrFolderSilently(downloadFile);
+            }
+            journal.delete();
+
+            FileUtils.syncDirectories(stagingFolderPath);
+            if (!new File(stagingFolderPath).renameTo(new File(newUpdateFolderPath))) {
+                throw new CodePushUnknownException("Unable to move staged package from " + stagingFolderPath + " to " + newUpdateFolderPath + ".");
+            }
+            FileUtils.syncDirectory(new File(getCodePushPath()));
+        } else {
+            // File is a jsbundle, move it to a folder with the packageHash as its name
+            FileUtils.moveFile(downloadFile, newUpdateFolderPath, expectedBundleFileName);
+            journal.delete();
+        }
+
+        // Save metadata to the folder. It is written last, so a package folder without it is incomplete.
+        FileUtils.writeStringToFileAtomically(updatePackage.toString(), newUpdateMetadataPath);
+        FileUtils.syncDirectory(new File(newUpdateFolderPath));
+
+        if (packageStore != null) {
+            packageStore.add(newUpdateHash, packageManifest);
+            packageStore.save();
+        }
+    }
+
+    // Downloads over a single stream, resuming with a Range request from the last committed
+    // byte whenever an attempt fails. Progress is committed to the journal as it goes.
+    // When compressed transfer is enabled and the server applies a content coding, offsets refer
+    // to the encoded bytes, which are kept in a separate file so the transfer stays resumable.
+    private void downloadFileWithResume(String downloadUrlString, File downloadFile, CodePushDownloadJournal journal,
+                                        CodePushRetryBudget retryBudget, DownloadProgressCallback progressCallback) throws IOException {
+        boolean isCompressedTransferEnabled = CodePush.isCompressedTransferEnabled();
+        File encodedFile = new File(downloadFile.getParentFile(), CodePushConstants.DOWNLOAD_ENCODED_FILE_NAME);
+        boolean isNextRetry = false;
+        boolean isDecodedOnTheFly = false;
+        long lastOffset = journal.getCommittedOffset();
+        long totalBytes = journal.getTotalBytes();
+        String contentEncoding = journal.getContentEncoding();
+        File transferFile = contentEncoding != null ? encodedFile : downloadFile;
+        if (lastOffset > 0) {
+            // Drop anything written after the last commit, it may not have been flushed entirely.
+            RandomAccessFile randomAccessFile = new RandomAccessFile(transferFile, "rw");
+            try {
+                randomAccessFile.setLength(lastOffset);
+            } finally {
+                randomAccessFile.close();
+            }
+        }
 
-            String downloadUrlString = updatePackage.optString(CodePushConstants.DOWNLOAD_URL_KEY, null);
-            HttpURLConnection connection = null;
+        do {
+            CodePushHttpTransport.Response response = null;
             BufferedInputStream bin = null;
             FileOutputStream fos = null;
             BufferedOutputStream bout = null;
-            File downloadFile = null;
-            boolean isZip = false;
+            TeeInputStream wire = null;
+            InputStream decoder = null;
+            FileOutputStream decodedFos = null;
+            BufferedOutputStream decodedBout = null;
             boolean isErrorThisRetry = false;
+            Exception errorThisRetry = null;
             long startTime = new Date().getTime();
-// Download the file while checking if it is a zip and notifying client of progress.
-            //downloadUrlString = "https://zuulbbpublic.tgdd.vn/codepushv2/download/lv/lvHP3_VTkcnrVMaBNZ1fP28O2KE7";
+            isDecodedOnTheFly = false;
+            // Download the file while notifying client of progress.
             try {
-                URL downloadUrl = new URL(downloadUrlString);
-                HttpURLConnection.setFollowRedirects(false);
-                connection = (HttpURLConnection) (downloadUrl.openConnection());
-                connection.setConnectTimeout(HTTP_REQUEST_TIMEOUT); //set timeout to 120 seconds
-                connection.setReadTimeout(HTTP_REQUEST_TIMEOUT);
-                if (android.os.Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP &&
-                        downloadUrl.toString().startsWith("https")) {
-                    try {
-                        ((HttpsURLConnection) connection).setSSLSocketFactory(new TLSSocketFactory());
-                    } catch (Exception e) {
-                        throw new CodePushUnknownException("Error set SSLSocketFactory. ", e);
-                    }
+                Map<String, String> headers = new HashMap<>();
+                headers.put("Range", "bytes=" + lastOffset + "-");
+                headers.put("Accept-Encoding", isCompressedTransferEnabled ? "gzip" : "identity");
+                headers.put("x-accept-ranges", "partial-content");
+                if (lastOffset > 0 && journal.getValidator() != null) {
+                    headers.put("If-Range", journal.getValidator());
+                }
+                response = sendDownloadRequest(downloadUrlString, headers);
+
+                int responseCode = response.getStatusCode();
+                if (responseCode == 416 && lastOffset > 0) {
+                    // The committed offset is past the end of the remote file, start over.
+                    lastOffset = 0;
+                    journal.reset();
+                    throw new IOException("Range not satisfiable, restarting download");
+                } else if (responseCode >= 400) {
+                    throw new CodePushHttpException(downloadUrlString, responseCode);
                 }
 
-                connection.setRequestProperty("Range", "bytes=" + lastOffset + "-");
-                connection.setRequestProperty("Accept-Encoding", "identity");
-                connection.setRequestProperty("x-accept-ranges", "partial-content");
-                connection.setRequestMethod("GET");
+                bin = new BufferedInputStream(response.getBody(), CodePushConstants.DOWNLOAD_BUFFER_SIZE);
 
-                bin = new BufferedInputStream(connection.getInputStream(), CodePushConstants.DOWNLOAD_BUFFER_SIZE);
+                boolean isPartial = responseCode == HttpURLConnection.HTTP_PARTIAL;
+                if (lastOffset > 0 && !isPartial) {
+                    // The server ignored the range or the file changed since the journal was written.
+                    CodePushUtils.log("Server did not resume from offset " + lastOffset + ", restarting download");
+                    lastOffset = 0;
+                    journal.reset();
+                }
 
-                long totalChunkingBytes = connection.getContentLength();
-                if(lastOffset == 0) {
-                    //Get first response's contentLength as Total ContentLength
-                    totalBytes = totalChunkingBytes;
+                long totalChunkingBytes = response.getContentLength();
+                if (lastOffset == 0) {
+                    contentEncoding = readContentEncoding(response);
+                    transferFile = contentEncoding != null ? encodedFile : downloadFile;
+                    // Use the complete length of the first response, -1 when it is unknown (e.g. chunked).
+                    totalBytes = isPartial
+                            ? CodePushSegmentedDownloader.parseContentRangeTotal(response.getHeader("Content-Range"))
+                            : totalChunkingBytes;
+                    journal.setTotalBytes(totalBytes);
+                    journal.setValidator(CodePushDownloadJournal.readValidator(response));
+                    journal.setContentEncoding(contentEncoding);
+                    journal.setCommittedOffset(0);
+                    journal.save();
                 }
 
-                File downloadFolder = new File(getCodePushPath());
-                downloadFolder.mkdirs();
-                downloadFile = new File(downloadFolder, CodePushConstants.DOWNLOAD_FILE_NAME);
-                if(retried == 0) {
-                    fos = new FileOutputStream(downloadFile);
-                }else {
-                    CodePushUtils.log("Append file for resume offset " + lastOffset + ", file " + downloadFile.getAbsolutePath());
-                    fos = new FileOutputStream(downloadFile, true);
+                if (lastOffset == 0) {
+                    fos = new FileOutputStream(transferFile);
+                } else {
+                    CodePushUtils.log("Append file for resume offset " + lastOffset + ", file " + transferFile.getAbsolutePath());
+                    fos = new FileOutputStream(transferFile, true);
                 }
                 bout = new BufferedOutputStream(fos, CodePushConstants.DOWNLOAD_BUFFER_SIZE);
                 byte[] data = new byte[CodePushConstants.DOWNLOAD_BUFFER_SIZE];
 
                 int numBytesRead = 0;
-
-                while ((numBytesRead = bin.read(data, 0, CodePushConstants.DOWNLOAD_BUFFER_SIZE)) >= 0) {
-                    if (lastOffset < 4) {
-                        for (int i = 0; i < numBytesRead; i++) {
-                            int headerOffset = (int) (lastOffset) + i;
-                            if (headerOffset >= 4) {
-                                break;
-                            }
-                            header[headerOffset] = data[i];
+                long lastCommittedOffset = lastOffset;
+
+                if (contentEncoding != null && lastOffset == 0) {
+                    // Decode while the bytes arrive. A resumed attempt cannot do this because the
+                    // decoder state is lost, so it decodes the complete encoded file at the end instead.
+                    wire = new TeeInputStream(bin, bout);
+                    decoder = new GZIPInputStream(wire, CodePushConstants.DOWNLOAD_BUFFER_SIZE);
+                    decodedFos = new FileOutputStream(downloadFile);
+                    decodedBout = new BufferedOutputStream(decodedFos, CodePushConstants.DOWNLOAD_BUFFER_SIZE);
+                    while ((numBytesRead = decoder.read(data, 0, CodePushConstants.DOWNLOAD_BUFFER_SIZE)) >= 0) {
+                        decodedBout.write(data, 0, numBytesRead);
+                        lastOffset = wire.getCount();
+
+                        if (lastOffset - lastCommittedOffset >= JOURNAL_COMMIT_INTERVAL) {
+                            bout.flush();
+                            journal.setCommittedOffset(lastOffset);
+                            journal.save();
+                            lastCommittedOffset = lastOffset;
                         }
+
+                        progressCallback.call(new DownloadProgress(totalBytes, lastOffset));
                     }
 
-                    lastOffset += numBytesRead;
-                    bout.write(data, 0, numBytesRead);
+                    // Consume anything after the gzip trailer so the byte count matches the wire.
+                    while (wire.read(data, 0, CodePushConstants.DOWNLOAD_BUFFER_SIZE) >= 0) ;
+                    lastOffset = wire.getCount();
+                    isDecodedOnTheFly = true;
+                } else {
+                    while ((numBytesRead = bin.read(data, 0, CodePushConstants.DOWNLOAD_BUFFER_SIZE)) >= 0) {
+                        lastOffset += numBytesRead;
+                        bout.write(data, 0, numBytesRead);
+
+                        if (lastOffset - lastCommittedOffset >= JOURNAL_COMMIT_INTERVAL) {
+                            bout.flush();
+                            journal.setCommittedOffset(lastOffset);
+                            journal.save();
+                            lastCommittedOffset = lastOffset;
+                        }
 
-                    progressCallback.call(new DownloadProgress(totalChunkingBytes, lastOffset));
-                    //CodePushUtils.log("Read " + numBytesRead + " bytes, received " + lastOffset + " bytes, expected " + totalChunkingBytes);
+                        progressCallback.call(new DownloadProgress(totalBytes, lastOffset));
+                    }
                 }
-                CodePushUtils.log("Download " + numBytesRead + " bytes, received " + lastOffset + " bytes, expected " + totalChunkingBytes);
+                CodePushUtils.log("Download finished reading, received " + lastOffset + " bytes, expected " + totalBytes);
 
-                if (totalBytes != lastOffset) {
-                    throw new CodePushUnknownException("Received " + lastOffset + " bytes, expected " + totalChunkingBytes);
+                if (totalBytes >= 0 && totalBytes != lastOffset) {
+                    throw new CodePushUnknownException("Received " + lastOffset + " bytes, expected " + totalBytes);
                 }
-
-                isZip = ByteBuffer.wrap(header).getInt() == 0x504b0304;
             } catch (MalformedURLException e) {
                 throw new CodePushMalformedDataException(downloadUrlString, e);
             } catch (Exception e) {
                 isErrorThisRetry = true;
+                errorThisRetry = e;
                 CodePushUtils.log("Read Stream Exception " + e.getMessage());
             } finally {
                 try {
+                    if (decodedBout != null) decodedBout.close();
+                    if (decodedFos != null) decodedFos.close();
                     if (bout != null) bout.close();
                     if (fos != null) fos.close();
+                    if (decoder != null) decoder.close();
                     if (bin != null) bin.close();
-                    if (connection != null) connection.disconnect();
+                    if (response != null) response.close();
                 } catch (IOException e) {
                     throw new CodePushUnknownException("Error closing IO resources.", e);
                 }
-                long endTime = new Date().getTime();
-                CodePushUtils.log("Download finished " + ((isErrorThisRetry)? "failed" : "successful" ) + ", " + (endTime - startTime) + " ms, offset " + lastOffset + "/" + totalBytes);
-
-                if(isErrorThisRetry) {
-                    if(retried < HTTP_REQUEST_RETRIES) {
-                        CodePushUtils.log("Going to retry next time, retried ["+retried+"/"+HTTP_REQUEST_RETRIES+"]");
-                        isNextRetry = true;
-                        retried++;
-                        continue;
-                    }else{
-                        CodePushUtils.log("Exceed retry time ["+retried+"], going down");
-                        throw new CodePushUnknownException("Error while exceeding retry.");
-                    }
-                }else{
-                    isNextRetry = false;
+                if (bout != null) {
+                    // Everything received so far has been flushed by close().
+                    if (wire != null) lastOffset = wire.getCount();
+                    journal.setCommittedOffset(lastOffset);
+                    journal.save();
                 }
+                long endTime = new Date().getTime();
+                CodePushUtils.log("Download finished " + ((isErrorThisRetry) ? "failed" : "successful") + ", " + (endTime - startTime) + " ms, offset " + lastOffset + "/" + totalBytes);
             }
-            if (isZip) {
-                // Unzip the downloaded file and then delete the zip
-                String unzippedFolderPath = getUnzippedFolderPath();
-                FileUtils.unzipFile(downloadFile, unzippedFolderPath);
-                FileUtils.deleteFileOrFolderSilently(downloadFile);
 
-                // Merge contents with current update based on the manifest
-                String diffManifestFilePath = CodePushUtils.appendPathComponent(unzippedFolderPath,
-                        CodePushConstants.DIFF_MANIFEST_FILE_NAME);
-                boolean isDiffUpdate = FileUtils.fileAtPathExists(diffManifestFilePath);
-                if (isDiffUpdate) {
-                    String currentPackageFolderPath = getCurrentPackageFolderPath();
-                    CodePushUpdateUtils.copyNecessaryFilesFromCurrentPackage(diffManifestFilePath, currentPackageFolderPath, newUpdateFolderPath);
-                    File diffManifestFile = new File(diffManifestFilePath);
-                    diffManifestFile.delete();
-                }
+            if (isErrorThisRetry) {
+                retryBudget.awaitRetry(errorThisRetry);
+                isNextRetry = true;
+            } else {
+                isNextRetry = false;
+            }
+        } while (isNextRetry);
 
-                FileUtils.copyDirectoryContents(unzippedFolderPath, newUpdateFolderPath);
-                FileUtils.deleteFileAtPathSilently(unzippedFolderPath);
+        if (totalBytes < 0) {
+            // The length was unknown up front, so report completion now that the stream ended.
+            progressCallback.call(new DownloadProgress(lastOffset, lastOffset));
+        }
 
-                // For zip updates, we need to find the relative path to the jsBundle and save it in the
-                // metadata so that we can find and run it easily the next time.
-                String relativeBundlePath = CodePushUpdateUtils.findJSBundleInUpdateContents(newUpdateFolderPath, expectedBundleFileName);
+        if (contentEncoding != null) {
+            if (!isDecodedOnTheFly) {
+                decodeFile(encodedFile, downloadFile);
+            }
+            FileUtils.deleteFileOrFolderSilently(encodedFile);
+        }
 
-                if (relativeBundlePath == null) {
-                    throw new CodePushInvalidUpdateException("Update is invalid - A JS bundle file named \"" + expectedBundleFileName + "\" could not be found within the downloaded contents. Please check that you are releasing your CodePush updates using the exact same JS bundle file name that was shipped with your app's binary.");
-                } else {
-                    if (FileUtils.fileAtPathExists(newUpdateMetadataPath)) {
-                        File metadataFileFromOldUpdate = new File(newUpdateMetadataPath);
-                        metadataFileFromOldUpdate.delete();
-                    }
+        // From here on the journal describes the decoded download.zip.
+        journal.setContentEncoding(null);
+        journal.setTotalBytes(downloadFile.length());
+        journal.setCommittedOffset(downloadFile.length());
+        journal.save();
+    }
 
-                    if (isDiffUpdate) {
-                        CodePushUtils.log("Applying diff update.");
-                    } else {
-                        CodePushUtils.log("Applying full update.");
-                    }
+    // Feeds the response straight into the zip extractor, so entries are written to the unzipped
+    // folder while the package downloads. The raw bytes are only kept on disk when the server
+    // supports Range requests, so that a failed attempt can be resumed by downloadFileWithResume.
+    // Returns false when the package still has to be downloaded by downloadFileWithResume, either
+    // resuming from the kept bytes or starting over.
+    private boolean downloadAndExtractPackage(String downloadUrlString, File downloadFile, String unzippedFolderPath,
+                                              CodePushPackageManifest packageManifest, CodePushPackageManifest reusableManifest,
+                                              final CodePushDownloadJournal journal, CodePushRetryBudget retryBudget,
+                                              final DownloadProgressCallback progressCallback) throws IOException {
+        CodePushHttpTransport.Response response = null;
+        File transferFile = null;
+        FileOutputStream fos = null;
+        BufferedOutputStream bout = null;
+        TeeInputStream wire = null;
+        InputStream zipSource = null;
+        boolean isJournalled = false;
+        boolean isExtracted = false;
+        long startTime = System.currentTimeMillis();
+        try {
+            Map<String, String> headers = new HashMap<>();
+            headers.put("Range", "bytes=0-");
+            headers.put("Accept-Encoding", CodePush.isCompressedTransferEnabled() ? "gzip" : "identity");
+            headers.put("x-accept-ranges", "partial-content");
+            response = sendDownloadRequest(downloadUrlString, headers);
+
+            int responseCode = response.getStatusCode();
+            if (responseCode >= 400) {
+                throw new CodePushHttpException(downloadUrlString, responseCode);
+            }
 
-                    boolean isSignatureVerificationEnabled = (stringPublicKey != null);
-
-                    String signaturePath = CodePushUpdateUtils.getSignatureFilePath(newUpdateFolderPath);
-                    boolean isSignatureAppearedInBundle = FileUtils.fileAtPathExists(signaturePath);
-
-                    if (isSignatureVerificationEnabled) {
-                        if (isSignatureAppearedInBundle) {
-                            CodePushUpdateUtils.verifyFolderHash(newUpdateFolderPath, newUpdateHash);
-                            CodePushUpdateUtils.verifyUpdateSignature(newUpdateFolderPath, newUpdateHash, stringPublicKey);
-                        } else {
-                            throw new CodePushInvalidUpdateException(
-                                    "Error! Public key was provided but there is no JWT signature within app bundle to verify. " +
-                                            "Possible reasons, why that might happen: \n" +
-                                            "1. You've been released CodePush bundle update using version of CodePush CLI that is not support code signing.\n" +
-                                            "2. You've been released CodePush bundle update without providing --privateKeyPath option."
-                            );
-                        }
-                    } else {
-                        if (isSignatureAppearedInBundle) {
-                            CodePushUtils.log(
-                                    "Warning! JWT signature exists in codepush update but code integrity check couldn't be performed because there is no public key configured. " +
-                                            "Please ensure that public key is properly configured within your application."
-                            );
-                            CodePushUpdateUtils.verifyFolderHash(newUpdateFolderPath, newUpdateHash);
-                        } else {
-                            if (isDiffUpdate) {
-                                CodePushUpdateUtils.verifyFolderHash(newUpdateFolderPath, newUpdateHash);
-                            }
-                        }
+            boolean isPartial = responseCode == HttpURLConnection.HTTP_PARTIAL;
+            boolean isResumable = isPartial || "bytes".equalsIgnoreCase(response.getHeader("Accept-Ranges"));
+            String contentEncoding = readContentEncoding(response);
+            final long totalBytes = isPartial
+                    ? CodePushSegmentedDownloader.parseContentRangeTotal(response.getHeader("Content-Range"))
+                    : response.getContentLength();
+
+            journal.reset();
+            if (isResumable) {
+                transferFile = contentEncoding != null
+                        ? new File(downloadFile.getParentFile(), CodePushConstants.DOWNLOAD_ENCODED_FILE_NAME)
+                        : downloadFile;
+                journal.setTotalBytes(totalBytes);
+                journal.setValidator(CodePushDownloadJournal.readValidator(response));
+                journal.setContentEncoding(contentEncoding);
+                journal.save();
+                fos = new FileOutputStream(transferFile);
+                bout = new BufferedOutputStream(fos, CodePushConstants.DOWNLOAD_BUFFER_SIZE);
+                isJournalled = true;
+            }
+
+            final BufferedOutputStream journalledOut = bout;
+            wire = new TeeInputStream(new BufferedInputStream(response.getBody(), CodePushConstants.DOWNLOAD_BUFFER_SIZE), bout) {
+                private long mLastCommittedOffset = 0;
+
+                @Override
+                public int read(byte[] buffer, int offset, int length) throws IOException {
+                    int numBytesRead = super.read(buffer, offset, length);
+                    long receivedBytes = getCount();
+                    if (journalledOut != null && receivedBytes - mLastCommittedOffset >= JOURNAL_COMMIT_INTERVAL) {
+                        journalledOut.flush();
+                        journal.setCommittedOffset(receivedBytes);
+                        journal.save();
+                        mLastCommittedOffset = receivedBytes;
                     }
 
-                    CodePushUtils.setJSONValueForKey(updatePackage, CodePushConstants.RELATIVE_BUNDLE_PATH_KEY, relativeBundlePath);
+                    if (numBytesRead > 0) {
+                        progressCallback.call(new DownloadProgress(totalBytes, receivedBytes));
+                    }
+                    return numBytesRead;
                 }
-            } else {
-                // File is a jsbundle, move it to a folder with the packageHash as its name
-                FileUtils.moveFile(downloadFile, newUpdateFolderPath, expectedBundleFileName);
+            };
+
+            zipSource = new BufferedInputStream(contentEncoding != null
+                    ? new GZIPInputStream(wire, CodePushConstants.DOWNLOAD_BUFFER_SIZE)
+                    : wire, CodePushConstants.DOWNLOAD_BUFFER_SIZE);
+            if (!hasZipHeader(zipSource)) {
+                // A plain JS bundle is not worth streaming, let the regular path fetch it.
+                CodePushUtils.log("Package is not a zip, downloading it to a file instead.");
+                isJournalled = false;
+                journal.reset();
+                return false;
+            }
+
+            ZipInputStream zipStream = new ZipInputStream(zipSource);
+            zipSource = zipStream;
+            FileUtils.unzipStream(zipStream, unzippedFolderPath, packageManifest, reusableManifest);
+
+            // Consume the central directory so that the whole package is accounted for.
+            byte[] data = new byte[CodePushConstants.DOWNLOAD_BUFFER_SIZE];
+            while (wire.read(data, 0, data.length) >= 0) ;
+            CodePushUtils.log("Streaming install finished reading, received " + wire.getCount() + " bytes, expected " + totalBytes);
+
+            if (totalBytes >= 0 && totalBytes != wire.getCount()) {
+                throw new CodePushUnknownException("Received " + wire.getCount() + " bytes, expected " + totalBytes);
+            } else if (totalBytes < 0) {
+                progressCallback.call(new DownloadProgress(wire.getCount(), wire.getCount()));
+            }
+
+            isExtracted = true;
+        } catch (MalformedURLException e) {
+            throw new CodePushMalformedDataException(downloadUrlString, e);
+        } catch (IOException | CodePushUnknownException e) {
+            CodePushUtils.log("Streaming install failed " + e.getMessage());
+            mTrash.moveToTrash(unzippedFolderPath);
+            retryBudget.awaitRetry(e);
+        } finally {
+            try {
+                if (zipSource != null) zipSource.close();
+                if (bout != null) bout.close();
+                if (fos != null) fos.close();
+                if (response != null) response.close();
+            } catch (IOException e) {
+                throw new CodePushUnknownException("Error closing IO resources.", e);
+            }
+            if (isJournalled && !isExtracted && wire != null) {
+                // Everything teed so far has been flushed by close().
+                journal.setCommittedOffset(wire.getCount());
+                journal.save();
+            }
+            CodePushUtils.log("Streaming install " + (isExtracted ? "successful" : "did not complete") + ", " + (System.currentTimeMillis() - startTime) + " ms");
+        }
+
+        if (isExtracted && transferFile != null) {
+            FileUtils.deleteFileOrFolderSilently(transferFile);
+        }
+        return isExtracted;
+    }
+
+    // Adds the recorded hashes of the files a diff update kept from the current package to the
+    // hashes of the files it extracted. Returns null when the current package has no recorded
+    // hashes, in which case the new package folder has to be hashed from disk.
+    private CodePushPackageManifest mergeCurrentPackageManifest(String currentPackageFolderPath, String newUpdateFolderPath,
+                                                                CodePushPackageManifest packageManifest) {
+        CodePushPackageManifest currentPackageManifest = currentPackageFolderPath == null ? null
+                : CodePushPackageManifest.load(currentPackageFolderPath);
+        if (currentPackageManifest == null) {
+            CodePushUtils.log("Current package has no recorded file hashes.");
+            return null;
+        }
+
+        for (String relativePath : currentPackageManifest.getRelativePaths()) {
+            // Files replaced by the update keep their new hash, deleted files are gone from disk.
+            if (packageManifest.get(relativePath) == null && new File(newUpdateFolderPath, relativePath).exists()) {
+                packageManifest.putFrom(currentPackageManifest, relativePath);
+            }
+        }
+        return packageManifest;
+    }
+
+    // Entries are reused from the current package when their CRC-32 and size match, which a
+    // different file can share. The folder hash is computed from the SHA-256 recorded for the
+    // reused files, so it catches such a collision, in which case the package is staged again
+    // without reusing files rather than rejected.
+    private static CodePushPackageManifest verifyStagedPackage(String stagingFolderPath, String packageHash,
+                                                               CodePushPackageManifest packageManifest, boolean hasReusedFiles) {
+        try {
+            return CodePushUpdateUtils.verifyFolderHash(stagingFolderPath, packageHash, packageManifest);
+        } catch (CodePushInvalidUpdateException e) {
+            if (hasReusedFiles) {
+                throw new ReusedFileMismatchException(e.getMessage());
+            }
+            throw e;
+        }
+    }
+
+    private static class ReusedFileMismatchException extends CodePushInvalidUpdateException {
+        ReusedFileMismatchException(String message) {
+            super(message);
+        }
+    }
+
+    private static boolean hasZipHeader(InputStream inputStream) throws IOException {
+        byte[] header = new byte[4];
+        inputStream.mark(header.length);
+        int headerLength = 0;
+        int numBytesRead;
+        while (headerLength < header.length
+                && (numBytesRead = inputStream.read(header, headerLength, header.length - headerLength)) >= 0) {
+            headerLength += numBytesRead;
+        }
+        inputStream.reset();
+
+        return headerLength == header.length && ByteBuffer.wrap(header).getInt() == 0x504b0304;
+    }
+
+    // Returns null for identity responses, or the supported content coding applied by the server.
+    private static String readContentEncoding(CodePushHttpTransport.Response response) throws IOException {
+        String contentEncoding = response.getHeader("Content-Encoding");
+        if (contentEncoding == null || contentEncoding.trim().isEmpty() || contentEncoding.trim().equalsIgnoreCase("identity")) {
+            return null;
+        }
+
+        contentEncoding = contentEncoding.trim().toLowerCase(Locale.US);
+        if (contentEncoding.equals("gzip") || contentEncoding.equals("x-gzip")) {
+            return "gzip";
+        }
+
+        throw new ProtocolException("Unsupported Content-Encoding " + contentEncoding);
+    }
+
+    private static void decodeFile(File encodedFile, File decodedFile) throws IOException {
+        InputStream decoder = null;
+        FileOutputStream fos = null;
+        try {
+            decoder = new GZIPInputStream(new FileInputStream(encodedFile), CodePushConstants.DOWNLOAD_BUFFER_SIZE);
+            fos = new FileOutputStream(decodedFile);
+            byte[] data = new byte[CodePushConstants.DOWNLOAD_BUFFER_SIZE];
+            int numBytesRead;
+            while ((numBytesRead = decoder.read(data)) >= 0) {
+                fos.write(data, 0, numBytesRead);
             }
+        } finally {
+            if (fos != null) fos.close();
+            if (decoder != null) decoder.close();
+        }
+    }
 
- // Save metadata to the folder.
- CodePushUtils.writeJsonToFile(updatePackage, newUpdateMetadataPath);
+    private static boolean hasMagic(File downloadFile, int magic) throws IOException {
+        byte[] header = new byte[4];
+        RandomAccessFile randomAccessFile = new RandomAccessFile(downloadFile, "r");
+        try {
+            if (randomAccessFile.length() < header.length) {
+                return false;
+            }
+            randomAccessFile.readFully(header);
+        } finally {
+            randomAccessFile.close();
+        }
 
- isNextRetry = false;
-        }while(isNextRetry);
-    
+        return ByteBuffer.wrap(header).getInt() == magic;
     }
 
-    public void installPackage(JSONObject updatePackage, boolean removePendingUpdate) {
+    public synchronized void installPackage(JSONObject updatePackage, boolean removePendingUpdate) {
         String packageHash = updatePackage.optString(CodePushConstants.PACKAGE_HASH_KEY, null);
         JSONObject info = getCurrentPackageInfo();
 
@@ -372,15 +971,18 @@ public class CodePushUpdateManager {
             return;
         }
 
+        // Packages in the package store are kept until it evicts them.
+        CodePushPackageStore packageStore = getPackageStore();
         if (removePendingUpdate) {
             String currentPackageFolderPath = getCurrentPackageFolderPath();
-            if (currentPackageFolderPath != null) {
-                FileUtils.deleteDirectoryAtPath(currentPackageFolderPath);
+            if (currentPackageFolderPath != null && (packageStore == null || !packageStore.contains(currentPackageHash))) {
+                mTrash.moveToTrash(currentPackageFolderPath);
             }
         } else {
             String previousPackageHash = getPreviousPackageHash();
-            if (previousPackageHash != null && !previousPackageHash.equals(packageHash)) {
-                FileUtils.deleteDirectoryAtPath(getPackageFolderPath(previousPackageHash));
+            if (previousPackageHash != null && !previousPackageHash.equals(packageHash)
+                    && (packageStore == null || !packageStore.contains(previousPackageHash))) {
+                mTrash.moveToTrash(getPackageFolderPath(previousPackageHash));
             }
 
             CodePushUtils.setJSONValueForKey(info, CodePushConstants.PREVIOUS_PACKAGE_KEY, info.optString(CodePushConstants.CURRENT_PACKAGE_KEY, null));
@@ -388,28 +990,72 @@ public class CodePushUpdateManager {
 
         CodePushUtils.setJSONValueForKey(info, CodePushConstants.CURRENT_PACKAGE_KEY, packageHash);
         updateCurrentPackageInfo(info);
+
+        if (packageStore != null) {
+            Set<String> pinnedPackageHashes = new HashSet<>();
+            pinnedPackageHashes.add(packageHash);
+            pinnedPackageHashes.add(info.optString(CodePushConstants.PREVIOUS_PACKAGE_KEY, null));
+            packageStore.touch(packageHash);
+            packageStore.evict(pinnedPackageHashes, CodePush.getMaxRetainedPackageCount(), CodePush.getMaxRetainedPackageBytes());
+            packageStore.save();
+        }
+        collectUnusedBlobs();
     }
 
-    public void rollbackPackage() {
+    // Makes the previous package the current one with a single write of codepush.json, which
+    // also records the failed package until finishRollback has removed it. Nothing else is done,
+    // so that rolling back at startup costs no more than that write. Returns the failed package hash.
+    public synchronized String rollbackPackage() {
         JSONObject info = getCurrentPackageInfo();
-        String currentPackageFolderPath = getCurrentPackageFolderPath();
-        FileUtils.deleteDirectoryAtPath(currentPackageFolderPath);
+        String failedPackageHash = info.optString(CodePushConstants.CURRENT_PACKAGE_KEY, null);
+        CodePushUtils.setJSONValueForKey(info, CodePushConstants.ROLLED_BACK_PACKAGE_KEY, failedPackageHash);
         CodePushUtils.setJSONValueForKey(info, CodePushConstants.CURRENT_PACKAGE_KEY, info.optString(CodePushConstants.PREVIOUS_PACKAGE_KEY, null));
         CodePushUtils.setJSONValueForKey(info, CodePushConstants.PREVIOUS_PACKAGE_KEY, null);
         updateCurrentPackageInfo(info);
+        return failedPackageHash;
+    }
+
+    // The package rolled back from, until finishRollback has removed it, or null.
+    public String getRolledBackPackageHash() {
+        return getCurrentPackageInfo().optString(CodePushConstants.ROLLED_BACK_PACKAGE_KEY, null);
+    }
+
+    // Removes the given package rolled back from, and clears the record rollbackPackage made of
+    // it, unless a later rollback has replaced that record since.
+    public synchronized void finishRollback(String failedPackageHash) {
+        JSONObject info = getCurrentPackageInfo();
+
+        // The same package may have been installed again since.
+        if (!failedPackageHash.equals(info.optString(CodePushConstants.CURRENT_PACKAGE_KEY, null))
+                && !failedPackageHash.equals(info.optString(CodePushConstants.PREVIOUS_PACKAGE_KEY, null))) {
+            mTrash.moveToTrash(getPackageFolderPath(failedPackageHash));
+            CodePushPackageStore packageStore = getPackageStore();
+            if (packageStore != null) {
+                // The failed package must not be installed from the store again.
+                packageStore.remove(failedPackageHash);
+                packageStore.save();
+            }
+            collectUnusedBlobs();
+        }
+
+        if (failedPackageHash.equals(info.optString(CodePushConstants.ROLLED_BACK_PACKAGE_KEY, null))) {
+            info.remove(CodePushConstants.ROLLED_BACK_PACKAGE_KEY);
+            updateCurrentPackageInfo(info);
+        }
     }
 
 
     public void downloadAndReplaceCurrentBundle(String remoteBundleUrl, String bundleFileName) throws IOException {
-        URL downloadUrl;
-        HttpURLConnection connection = null;
+        CodePushHttpTransport.Response response = null;
         BufferedInputStream bin = null;
         FileOutputStream fos = null;
         BufferedOutputStream bout = null;
         try {
-            downloadUrl = new URL(remoteBundleUrl);
-            connection = (HttpURLConnection) (downloadUrl.openConnection());
-            bin = new BufferedInputStream(connection.getInputStream());
+            response = sendDownloadRequest(remoteBundleUrl, new HashMap<String, String>());
+            if (response.getStatusCode() >= 400) {
+                throw new CodePushHttpException(remoteBundleUrl, response.getStatusCode());
+            }
+            bin = new BufferedInputStream(response.getBody());
             File downloadFile = new File(getCurrentPackageBundlePath(bundleFileName));
             downloadFile.delete();
             fos = new FileOutputStream(downloadFile);
@@ -426,7 +1072,7 @@ public class CodePushUpdateManager {
                 if (bout != null) bout.close();
                 if (fos != null) fos.close();
                 if (bin != null) bin.close();
-                if (connection != null) connection.disconnect();
+                if (response != null) response.close();
             } catch (IOException e) {
                 throw new CodePushUnknownException("Error closing IO resources.", e);
             }
@@ -434,6 +1080,6 @@ public class CodePushUpdateManager {
     }
 
     public void clearUpdates() {
-        FileUtils.deleteDirectoryAtPath(getCodePushPath());
+        mTrash.moveToTrash(getCodePushPath());
     }
 }
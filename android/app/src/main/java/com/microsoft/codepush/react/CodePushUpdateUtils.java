@@ -1,7 +1,9 @@
 package com.microsoft.codepush.react;
 
 import android.content.Context;
+import android.os.Build;
 import android.util.Base64;
+import android.util.JsonReader;
 
 import com.nimbusds.jose.JWSVerifier;
 import com.nimbusds.jose.crypto.RSASSAVerifier;
@@ -10,15 +12,15 @@ import com.nimbusds.jwt.SignedJWT;
 import java.security.interfaces.*;
 
 import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
 
+import java.io.BufferedReader;
 import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.security.DigestInputStream;
 import java.security.KeyFactory;
 import java.security.MessageDigest;
@@ -27,12 +29,47 @@ import java.security.PublicKey;
 import java.security.spec.X509EncodedKeySpec;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 public class CodePushUpdateUtils {
 
     public static final String NEW_LINE = System.getProperty("line.separator");
 
+    private static final int HASH_BUFFER_SIZE = 1024 * 64;
+
+    // Each hashing thread reuses one digest and one buffer for all the files it hashes.
+    private static final ThreadLocal<MessageDigest> sHashDigest = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            return createHashDigest();
+        }
+    };
+    private static final ThreadLocal<byte[]> sHashBuffer = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[HASH_BUFFER_SIZE];
+        }
+    };
+
+    // Returns whether the name is a package hash, i.e. a lowercase hex SHA-256.
+    public static boolean isPackageHash(String name) {
+        if (name == null || name.length() != 64) {
+            return false;
+        }
+
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if ((c < '0' || c > '9') && (c < 'a' || c > 'f')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     // Note: The hashing logic here must mirror the hashing logic in other native SDK's, as well as in the
     // CLI. Ensure that any changes here are propagated to these other locations.
     public static boolean isHashIgnored(String relativeFilePath) {
@@ -47,7 +84,7 @@ public class CodePushUpdateUtils {
                 || relativeFilePath.endsWith("/" + CODEPUSH_METADATA);
     }
 
-    private static void addContentsOfFolderToManifest(String folderPath, String pathPrefix, ArrayList<String> manifest) {
+    private static void addContentsOfFolderToManifest(String folderPath, String pathPrefix, CodePushPackageManifest manifest) {
         File folder = new File(folderPath);
         File[] folderFiles = folder.listFiles();
         for (File file : folderFiles) {
@@ -63,7 +100,7 @@ public class CodePushUpdateUtils {
                 addContentsOfFolderToManifest(fullFilePath, relativePath, manifest);
             } else {
                 try {
-                    manifest.add(relativePath + ":" + computeHash(new FileInputStream(file)));
+                    manifest.put(relativePath, computeHash(new FileInputStream(file)), -1, file.length());
                 } catch (FileNotFoundException e) {
                     // Should not happen.
                     throw new CodePushUnknownException("Unable to compute hash of update contents.", e);
@@ -72,15 +109,71 @@ public class CodePushUpdateUtils {
         }
     }
 
+    private static void addFilesOfFolder(String folderPath, String pathPrefix, List<String> relativePaths, List<File> files) {
+        File folder = new File(folderPath);
+        File[] folderFiles = folder.listFiles();
+        for (File file : folderFiles) {
+            String relativePath = (pathPrefix.isEmpty() ? "" : (pathPrefix + "/")) + file.getName();
+
+            if (CodePushUpdateUtils.isHashIgnored(relativePath)) {
+                continue;
+            }
+
+            if (file.isDirectory()) {
+                addFilesOfFolder(file.getAbsolutePath(), relativePath, relativePaths, files);
+            } else {
+                relativePaths.add(relativePath);
+                files.add(file);
+            }
+        }
+    }
+
+    static String computeFileHash(File file) {
+        MessageDigest messageDigest = sHashDigest.get();
+        byte[] byteBuffer = sHashBuffer.get();
+        messageDigest.reset();
+        FileInputStream fileStream = null;
+        try {
+            fileStream = new FileInputStream(file);
+            int numBytesRead;
+            while ((numBytesRead = fileStream.read(byteBuffer)) != -1) {
+                messageDigest.update(byteBuffer, 0, numBytesRead);
+            }
+        } catch (IOException e) {
+            throw new CodePushUnknownException("Unable to compute hash of update contents.", e);
+        } finally {
+            try {
+                if (fileStream != null) fileStream.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        return formatHash(messageDigest.digest());
+    }
+
+    static MessageDigest createHashDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // Should not happen.
+            throw new CodePushUnknownException("Unable to compute hash of update contents.", e);
+        }
+    }
+
+    static String formatHash(byte[] hash) {
+        return String.format("%064x", new java.math.BigInteger(1, hash));
+    }
+
     private static String computeHash(InputStream dataStream) {
         MessageDigest messageDigest = null;
         DigestInputStream digestInputStream = null;
         try {
-            messageDigest = MessageDigest.getInstance("SHA-256");
+            messageDigest = createHashDigest();
             digestInputStream = new DigestInputStream(dataStream, messageDigest);
             byte[] byteBuffer = new byte[1024 * 8];
             while (digestInputStream.read(byteBuffer) != -1) ;
-        } catch (NoSuchAlgorithmException | IOException e) {
+        } catch (IOException e) {
             // Should not happen.
             throw new CodePushUnknownException("Unable to compute hash of update contents.", e);
         } finally {
@@ -96,28 +189,191 @@ public class CodePushUpdateUtils {
             }
         }
 
-        byte[] hash = messageDigest.digest();
-        return String.format("%064x", new java.math.BigInteger(1, hash));
+        return formatHash(messageDigest.digest());
     }
 
+    // Fills the new package folder, which already holds the files of the diff update, with the
+    // files of the current package that the update neither replaces nor deletes.
     public static void copyNecessaryFilesFromCurrentPackage(String diffManifestFilePath, String currentPackageFolderPath, String newPackageFolderPath) throws IOException {
         if (currentPackageFolderPath == null || !new File(currentPackageFolderPath).exists()) {
             CodePushUtils.log("Unable to copy files from current package during diff update, because currentPackageFolderPath is invalid.");
             return;
         }
-        FileUtils.copyDirectoryContents(currentPackageFolderPath, newPackageFolderPath);
-        JSONObject diffManifest = CodePushUtils.getJsonObjectFromFile(diffManifestFilePath);
+        Set<String> excludedFiles = new HashSet<>();
+        // The metadata of the current package does not describe the new one.
+        excludedFiles.add(CodePushConstants.PACKAGE_FILE_NAME);
+        excludedFiles.add(CodePushConstants.PACKAGE_HASHES_FILE_NAME);
+        // Deleted files are left out of the plan, so they are never linked or copied at all.
+        readDeletedFiles(diffManifestFilePath, excludedFiles);
+
+        // Package folders are never modified once installed, so they can share unchanged files.
+        FileUtils.mergeDirectoryContents(currentPackageFolderPath, newPackageFolderPath, excludedFiles, CodePush.isHardLinkingEnabled());
+    }
+
+    // Applies a diff update released against the binary, taking the files it kept from the APK.
+    public static void copyNecessaryFilesFromBinary(String diffManifestFilePath, CodePushBinaryPackage binaryPackage,
+                                                    String newPackageFolderPath, CodePushPackageManifest manifest) throws IOException {
+        Set<String> excludedFiles = new HashSet<>();
+        readDeletedFiles(diffManifestFilePath, excludedFiles);
+        binaryPackage.copyFiles(newPackageFolderPath, excludedFiles, manifest);
+    }
+
+    // Replaces every file listed in the patchedFiles of the diff manifest, which the new package
+    // folder holds in the version the diff was made against, with the result of applying its
+    // VCDIFF patch, and deletes the patch. The result is written to a new file, as the old one may
+    // be a hard link into the current package. Its hash is recorded in the manifest, if one is given.
+    public static void applyPatches(String diffManifestFilePath, String newPackageFolderPath, CodePushPackageManifest manifest) throws IOException {
+        File newPackageFolder = new File(newPackageFolderPath);
+        MessageDigest messageDigest = createHashDigest();
+        for (String[] patchedFile : readFileEntries(diffManifestFilePath, "patchedFiles", "path", "patch")) {
+            String relativePath = patchedFile[0];
+            File file = new File(FileUtils.validateFileName(relativePath, newPackageFolder));
+            File patchFile = new File(FileUtils.validateFileName(patchedFile[1], newPackageFolder));
+            if (!file.isFile() || !patchFile.isFile()) {
+                throw new CodePushInvalidUpdateException("Unable to patch " + relativePath + ", the file or its patch is missing.");
+            }
+
+            long startTime = System.currentTimeMillis();
+            long patchSize = patchFile.length();
+            File patchedFileTemp = File.createTempFile("codepush", ".patched", file.getParentFile());
+            messageDigest.reset();
+            long fileSize;
+            InputStream patchStream = new FileInputStream(patchFile);
+            try {
+                fileSize = CodePushVcdiffDecoder.decode(file, patchStream, patchedFileTemp, messageDigest);
+            } catch (IOException | RuntimeException e) {
+                patchedFileTemp.delete();
+                throw e;
+            } finally {
+                patchStream.close();
+            }
+
+            if (!patchedFileTemp.renameTo(file)) {
+                patchedFileTemp.delete();
+                throw new CodePushUnknownException("Unable to replace " + relativePath + " with its patched version.");
+            }
+            patchFile.delete();
+            if (manifest != null) {
+                manifest.remove(patchedFile[1]);
+                manifest.put(relativePath, formatHash(messageDigest.digest()), -1, fileSize);
+            }
+            CodePushUtils.log("Patched " + relativePath + " with " + patchSize + " bytes, " + (System.currentTimeMillis() - startTime) + " ms");
+        }
+    }
+
+    // Replaces every file listed in the syncedFiles of the diff manifest, whose items are
+    // {"path": ..., "url": ..., "signature": ...}, with the version described by its block
+    // signature, taking the blocks it can from the version the new package folder holds and
+    // fetching the others from the url. All fetches draw on the retry budget of the download.
+    // The signature is deleted and the hash of the result is recorded in the manifest, if one is given.
+    public static void syncFiles(String diffManifestFilePath, String newPackageFolderPath, CodePushPackageManifest manifest,
+                                 CodePushRetryBudget retryBudget) throws IOException {
+        File newPackageFolder = new File(newPackageFolderPath);
+        for (String[] syncedFile : readFileEntries(diffManifestFilePath, "syncedFiles", "path", "url", "signature")) {
+            String relativePath = syncedFile[0];
+            File file = new File(FileUtils.validateFileName(relativePath, newPackageFolder));
+            File signatureFile = new File(FileUtils.validateFileName(syncedFile[2], newPackageFolder));
+            if (!signatureFile.isFile()) {
+                throw new CodePushInvalidUpdateException("Unable to sync " + relativePath + ", its block signature is missing.");
+            }
+
+            file.getParentFile().mkdirs();
+            File syncedFileTemp = File.createTempFile("codepush", ".synced", file.getParentFile());
+            String hash;
+            try {
+                hash = CodePushBlockSync.loadSignature(signatureFile).sync(file.isFile() ? file : null, syncedFile[1], syncedFileTemp, retryBudget);
+            } catch (IOException | RuntimeException e) {
+                syncedFileTemp.delete();
+                throw e;
+            }
+
+            // As for patches, the old version may be a hard link into the current package.
+            if (!syncedFileTemp.renameTo(file)) {
+                syncedFileTemp.delete();
+                throw new CodePushUnknownException("Unable to replace " + relativePath + " with its synced version.");
+            }
+            signatureFile.delete();
+            if (manifest != null) {
+                manifest.remove(syncedFile[2]);
+                manifest.put(relativePath, hash, -1, file.length());
+            }
+        }
+    }
+
+    // Reads the array with the given name from the diff manifest, which is optional, returning
+    // the values of the given keys of each of its objects.
+    private static List<String[]> readFileEntries(String diffManifestFilePath, String arrayName, String... keys) throws IOException {
+        List<String[]> entries = new ArrayList<>();
+        List<String> keyList = Arrays.asList(keys);
+        JsonReader reader = new JsonReader(new BufferedReader(new InputStreamReader(new FileInputStream(diffManifestFilePath), "UTF-8")));
+        try {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if (!reader.nextName().equals(arrayName)) {
+                    reader.skipValue();
+                    continue;
+                }
+
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    String[] entry = new String[keys.length];
+                    reader.beginObject();
+                    while (reader.hasNext()) {
+                        int keyIndex = keyList.indexOf(reader.nextName());
+                        if (keyIndex >= 0) {
+                            entry[keyIndex] = reader.nextString();
+                        } else {
+                            reader.skipValue();
+                        }
+                    }
+                    reader.endObject();
+
+                    if (Arrays.asList(entry).contains(null)) {
+                        throw new CodePushInvalidUpdateException("The " + arrayName + " of the diff manifest must all have " + keyList + ".");
+                    }
+                    entries.add(entry);
+                }
+                reader.endArray();
+            }
+            reader.endObject();
+        } catch (IllegalStateException e) {
+            // Thrown for tokens of an unexpected type.
+            throw new CodePushUnknownException("Unable to read the " + arrayName + " of the diff manifest", e);
+        } finally {
+            reader.close();
+        }
+        return entries;
+    }
+
+    // Reads the deletedFiles array of the diff manifest with a streaming reader, so large diffs
+    // are not held in memory as a whole document.
+    private static void readDeletedFiles(String diffManifestFilePath, Set<String> deletedFiles) throws IOException {
+        JsonReader reader = new JsonReader(new BufferedReader(new InputStreamReader(new FileInputStream(diffManifestFilePath), "UTF-8")));
         try {
-            JSONArray deletedFiles = diffManifest.getJSONArray("deletedFiles");
-            for (int i = 0; i < deletedFiles.length(); i++) {
-                String fileNameToDelete = deletedFiles.getString(i);
-                File fileToDelete = new File(newPackageFolderPath, fileNameToDelete);
-                if (fileToDelete.exists()) {
-                    fileToDelete.delete();
+            boolean hasDeletedFiles = false;
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if (reader.nextName().equals("deletedFiles")) {
+                    hasDeletedFiles = true;
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        deletedFiles.add(reader.nextString());
+                    }
+                    reader.endArray();
+                } else {
+                    reader.skipValue();
                 }
             }
-        } catch (JSONException e) {
+            reader.endObject();
+
+            if (!hasDeletedFiles) {
+                throw new CodePushUnknownException("Unable to copy files from current package during diff update, the diff manifest has no deletedFiles.");
+            }
+        } catch (IllegalStateException e) {
+            // Thrown for tokens of an unexpected type.
             throw new CodePushUnknownException("Unable to copy files from current package during diff update", e);
+        } finally {
+            reader.close();
         }
     }
 
@@ -159,14 +415,69 @@ public class CodePushUpdateUtils {
         }
     }
 
+    public static CodePushPackageManifest computeFolderManifest(String folderPath) {
+        CodePushPackageManifest manifest = new CodePushPackageManifest();
+        // Fork join pools need Android 5.0 (API 21), older devices hash one file at a time.
+        if (CodePush.isParallelHashingEnabled() && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            addContentsOfFolderToManifestInParallel(folderPath, manifest);
+        } else {
+            addContentsOfFolderToManifest(folderPath, "", manifest);
+        }
+        return manifest;
+    }
+
+    // Lists the folder on the calling thread, then hashes its files on a pool with one thread
+    // per core. The entries are sorted before the folder hash is computed, so the result is the
+    // same as with sequential hashing.
+    private static void addContentsOfFolderToManifestInParallel(String folderPath, CodePushPackageManifest manifest) {
+        List<String> relativePaths = new ArrayList<>();
+        List<File> files = new ArrayList<>();
+        addFilesOfFolder(folderPath, "", relativePaths, files);
+        long startTime = System.currentTimeMillis();
+        CodePushParallelHasher.hashFiles(relativePaths, files, manifest);
+        CodePushUtils.log("Hashed " + files.size() + " files in parallel, " + (System.currentTimeMillis() - startTime) + " ms");
+    }
+
     // Hashing algorithm:
     // 1. Recursively generate a sorted array of format <relativeFilePath>: <sha256FileHash>
     // 2. JSON stringify the array
     // 3. SHA256-hash the result
     public static void verifyFolderHash(String folderPath, String expectedHash) {
         CodePushUtils.log("Verifying hash for folder path: " + folderPath);
-        ArrayList<String> updateContentsManifest = new ArrayList<>();
-        addContentsOfFolderToManifest(folderPath, "", updateContentsManifest);
+        if (!isManifestHashEqual(computeFolderManifest(folderPath), expectedHash)) {
+            throw new CodePushInvalidUpdateException("The update contents failed the data integrity check.");
+        }
+
+        CodePushUtils.log("The update contents succeeded the data integrity check.");
+    }
+
+    // Verifies the folder with the hashes recorded while its files were written, so the files
+    // are not read back. If the recorded hashes do not add up, the folder is hashed again
+    // before the update is rejected. Returns the manifest the folder verified with, which is
+    // computed from the folder when none was recorded.
+    public static CodePushPackageManifest verifyFolderHash(String folderPath, String expectedHash, CodePushPackageManifest manifest) {
+        if (manifest != null) {
+            CodePushUtils.log("Verifying hash for folder path: " + folderPath + " with recorded file hashes");
+            if (isManifestHashEqual(manifest, expectedHash)) {
+                CodePushUtils.log("The update contents succeeded the data integrity check.");
+                return manifest;
+            }
+
+            CodePushUtils.log("Recorded file hashes do not match, hashing the folder contents.");
+        }
+
+        CodePushUtils.log("Verifying hash for folder path: " + folderPath);
+        manifest = computeFolderManifest(folderPath);
+        if (!isManifestHashEqual(manifest, expectedHash)) {
+            throw new CodePushInvalidUpdateException("The update contents failed the data integrity check.");
+        }
+
+        CodePushUtils.log("The update contents succeeded the data integrity check.");
+        return manifest;
+    }
+
+    static boolean isManifestHashEqual(CodePushPackageManifest manifest, String expectedHash) {
+        ArrayList<String> updateContentsManifest = manifest.getHashEntries();
         //sort manifest strings to make sure, that they are completely equal with manifest strings has been generated in cli!
         Collections.sort(updateContentsManifest);
         JSONArray updateContentsJSONArray = new JSONArray();
@@ -181,11 +492,7 @@ public class CodePushUpdateUtils {
         String updateContentsManifestHash = computeHash(new ByteArrayInputStream(updateContentsManifestString.getBytes()));
 
         CodePushUtils.log("Expected hash: " + expectedHash + ", actual hash: " + updateContentsManifestHash);
-        if (!expectedHash.equals(updateContentsManifestHash)) {
-            throw new CodePushInvalidUpdateException("The update contents failed the data integrity check.");
-        }
-
-        CodePushUtils.log("The update contents succeeded the data integrity check.");
+        return expectedHash.equals(updateContentsManifestHash);
     }
 
     public static Map<String, Object> verifyAndDecodeJWT(String jwt, PublicKey publicKey) {
@@ -0,0 +1,108 @@
+package com.microsoft.codepush.react;
+
+import android.os.Build;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Map;
+
+import javax.net.ssl.HttpsURLConnection;
+
+// Default transport built on HttpURLConnection. Connections are never disconnect()ed on success,
+// so the platform keeps them alive in its pool and reuses them for the next request to the host.
+public class CodePushUrlConnectionTransport implements CodePushHttpTransport {
+
+    private TLSSocketFactory mTLSSocketFactory;
+
+    @Override
+    public Response get(String url, Map<String, String> headers, int connectTimeout, int readTimeout) throws IOException {
+        URL requestUrl = new URL(url);
+        HttpURLConnection connection = (HttpURLConnection) (requestUrl.openConnection());
+        connection.setInstanceFollowRedirects(false);
+        connection.setConnectTimeout(connectTimeout);
+        connection.setReadTimeout(readTimeout);
+        if (android.os.Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP &&
+                url.startsWith("https")) {
+            ((HttpsURLConnection) connection).setSSLSocketFactory(getTLSSocketFactory());
+        }
+
+        connection.setRequestMethod("GET");
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            connection.setRequestProperty(header.getKey(), header.getValue());
+        }
+
+        return new UrlConnectionResponse(connection);
+    }
+
+    private synchronized TLSSocketFactory getTLSSocketFactory() {
+        if (mTLSSocketFactory == null) {
+            try {
+                mTLSSocketFactory = new TLSSocketFactory();
+            } catch (Exception e) {
+                throw new CodePushUnknownException("Error set SSLSocketFactory. ", e);
+            }
+        }
+
+        return mTLSSocketFactory;
+    }
+
+    private static class UrlConnectionResponse implements Response {
+        private final HttpURLConnection mConnection;
+        private InputStream mBody;
+
+        UrlConnectionResponse(HttpURLConnection connection) {
+            mConnection = connection;
+        }
+
+        @Override
+        public int getStatusCode() throws IOException {
+            return mConnection.getResponseCode();
+        }
+
+        @Override
+        public String getHeader(String name) {
+            return mConnection.getHeaderField(name);
+        }
+
+        @Override
+        public long getContentLength() {
+            // getContentLengthLong() needs API 24, and getContentLength() overflows past 2 GB.
+            String contentLength = mConnection.getHeaderField("Content-Length");
+            if (contentLength == null) {
+                return -1;
+            }
+
+            try {
+                return Long.parseLong(contentLength.trim());
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+
+        @Override
+        public InputStream getBody() throws IOException {
+            if (mBody == null) {
+                mBody = mConnection.getResponseCode() >= 400 ? mConnection.getErrorStream() : mConnection.getInputStream();
+            }
+
+            return mBody;
+        }
+
+        @Override
+        public void close() {
+            if (mBody == null) {
+                // Nothing was read, there is no stream to hand back to the pool.
+                mConnection.disconnect();
+                return;
+            }
+
+            try {
+                mBody.close();
+            } catch (IOException e) {
+                mConnection.disconnect();
+            }
+        }
+    }
+}
@@ -0,0 +1,342 @@
+package com.microsoft.codepush.react;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.util.zip.Adler32;
+
+// Decodes VCDIFF (RFC 3284) deltas, as written by xdelta3 with secondary compression turned off
+// ("-S none"). Copies from the source file are read from disk as needed, so memory use is bounded
+// by the size of a single window rather than the size of the files. Windows may copy from the
+// source file (VCD_SOURCE) or from the target written so far (VCD_TARGET), and their Adler-32
+// checksum is checked when xdelta3 included it. Custom code tables and compressed sections are
+// not supported.
+class CodePushVcdiffDecoder {
+
+    private static final int[] MAGIC = {0xD6, 0xC3, 0xC4, 0x00};
+    private static final int VCD_DECOMPRESS = 0x01;
+    private static final int VCD_CODETABLE = 0x02;
+    private static final int VCD_APPHEADER = 0x04;
+    private static final int VCD_SOURCE = 0x01;
+    private static final int VCD_TARGET = 0x02;
+    private static final int VCD_ADLER32 = 0x04;
+
+    private static final int NOOP = 0;
+    private static final int ADD = 1;
+    private static final int RUN = 2;
+    private static final int COPY = 3;
+
+    private static final int NEAR_CACHE_SIZE = 4;
+    private static final int SAME_CACHE_SIZE = 3;
+    private static final int MODE_SELF = 0;
+    private static final int MODE_HERE = 1;
+    private static final int FIRST_SAME_MODE = 2 + NEAR_CACHE_SIZE;
+
+    // Larger windows are rejected rather than allocated. xdelta3 writes windows of 8 MB at most.
+    private static final int MAX_WINDOW_SIZE = 1024 * 1024 * 64;
+    private static final int SEGMENT_BLOCK_SIZE = 1024 * 64;
+
+    // The default code table of RFC 3284 section 5.6, each instruction being {type, size, mode}
+    // for the first and the second half.
+    private static final int[][] CODE_TABLE = buildDefaultCodeTable();
+
+    // Writes the file that the delta describes when applied to the source file, adding the
+    // written bytes to the digest. Returns the size of the target file.
+    public static long decode(File sourceFile, InputStream deltaStream, File targetFile, MessageDigest messageDigest) throws IOException {
+        DataInputStream delta = new DataInputStream(new BufferedInputStream(deltaStream, CodePushConstants.DOWNLOAD_BUFFER_SIZE));
+        RandomAccessFile source = new RandomAccessFile(sourceFile, "r");
+        RandomAccessFile target = null;
+        try {
+            targetFile.delete();
+            target = new RandomAccessFile(targetFile, "rw");
+            readHeader(delta);
+            long targetSize = 0;
+            int windowIndicator;
+            while ((windowIndicator = delta.read()) != -1) {
+                targetSize += decodeWindow(windowIndicator, delta, source, target, targetSize, messageDigest);
+            }
+            return targetSize;
+        } finally {
+            source.close();
+            if (target != null) target.close();
+        }
+    }
+
+    private static void readHeader(DataInputStream delta) throws IOException {
+        for (int magicByte : MAGIC) {
+            if (delta.readUnsignedByte() != magicByte) {
+                throw new CodePushInvalidUpdateException("Patch is not in the VCDIFF format.");
+            }
+        }
+
+        int headerIndicator = delta.readUnsignedByte();
+        if ((headerIndicator & (VCD_DECOMPRESS | VCD_CODETABLE)) != 0) {
+            throw new CodePushInvalidUpdateException("VCDIFF patches with secondary compression or a custom code table are not supported.");
+        }
+
+        if ((headerIndicator & VCD_APPHEADER) != 0) {
+            skipFully(delta, readInt(delta));
+        }
+    }
+
+    private static int decodeWindow(int windowIndicator, DataInputStream delta, RandomAccessFile source,
+                                    RandomAccessFile target, long targetPosition, MessageDigest messageDigest) throws IOException {
+        SegmentReader segment = null;
+        int segmentLength = 0;
+        if ((windowIndicator & (VCD_SOURCE | VCD_TARGET)) != 0) {
+            segmentLength = readInt(delta);
+            long segmentPosition = readLong(delta);
+            boolean isTargetSegment = (windowIndicator & VCD_SOURCE) == 0;
+            long segmentFileLength = isTargetSegment ? targetPosition : source.length();
+            if (segmentPosition + segmentLength > segmentFileLength) {
+                throw new CodePushInvalidUpdateException("VCDIFF window copies from outside its source.");
+            }
+            segment = new SegmentReader(isTargetSegment ? target : source, segmentPosition, segmentLength);
+        }
+
+        readInt(delta); // Length of the delta encoding, the lengths below are enough.
+        int windowLength = readInt(delta);
+        if (delta.readUnsignedByte() != 0) {
+            throw new CodePushInvalidUpdateException("VCDIFF patches with compressed sections are not supported.");
+        }
+
+        int dataLength = readInt(delta);
+        int instructionsLength = readInt(delta);
+        int addressesLength = readInt(delta);
+        if (windowLength > MAX_WINDOW_SIZE || (long) dataLength + instructionsLength + addressesLength > MAX_WINDOW_SIZE) {
+            throw new CodePushInvalidUpdateException("VCDIFF window is larger than " + MAX_WINDOW_SIZE + " bytes.");
+        }
+
+        long expectedChecksum = -1;
+        if ((windowIndicator & VCD_ADLER32) != 0) {
+            expectedChecksum = delta.readInt() & 0xFFFFFFFFL;
+        }
+
+        Section data = new Section(delta, dataLength);
+        Section instructions = new Section(delta, instructionsLength);
+        Section addresses = new Section(delta, addressesLength);
+
+        byte[] window = new byte[windowLength];
+        long[] nearCache = new long[NEAR_CACHE_SIZE];
+        long[] sameCache = new long[SAME_CACHE_SIZE * 256];
+        int nextNearSlot = 0;
+        int windowPosition = 0;
+        while (instructions.hasRemaining()) {
+            int[] instruction = CODE_TABLE[instructions.readByte()];
+            for (int half = 0; half < 6; half += 3) {
+                int type = instruction[half];
+                if (type == NOOP) {
+                    continue;
+                }
+
+                int size = instruction[half + 1] != 0 ? instruction[half + 1] : instructions.readInt();
+                if (size > windowLength - windowPosition) {
+                    throw new CodePushInvalidUpdateException("VCDIFF instruction writes past the end of its window.");
+                }
+
+                if (type == ADD) {
+                    data.read(window, windowPosition, size);
+                } else if (type == RUN) {
+                    byte value = (byte) data.readByte();
+                    for (int i = 0; i < size; i++) {
+                        window[windowPosition + i] = value;
+                    }
+                } else {
+                    int mode = instruction[half + 2];
+                    long here = segmentLength + windowPosition;
+                    long address;
+                    if (mode == MODE_SELF) {
+                        address = addresses.readInt();
+                    } else if (mode == MODE_HERE) {
+                        address = here - addresses.readInt();
+                    } else if (mode < FIRST_SAME_MODE) {
+                        address = nearCache[mode - MODE_HERE - 1] + addresses.readInt();
+                    } else {
+                        address = sameCache[(mode - FIRST_SAME_MODE) * 256 + addresses.readByte()];
+                    }
+
+                    if (address < 0 || address >= here) {
+                        throw new CodePushInvalidUpdateException("VCDIFF instruction copies from an invalid address.");
+                    }
+                    nearCache[nextNearSlot] = address;
+                    nextNearSlot = (nextNearSlot + 1) % NEAR_CACHE_SIZE;
+                    sameCache[(int) (address % sameCache.length)] = address;
+
+                    int copied = 0;
+                    if (address < segmentLength) {
+                        copied = (int) Math.min(size, segmentLength - address);
+                        segment.read(address, window, windowPosition, copied);
+                    }
+                    // Copies from the window may overlap what they write, so go byte by byte.
+                    int windowAddress = (int) (address + copied - segmentLength);
+                    for (int i = copied; i < size; i++) {
+                        window[windowPosition + i] = window[windowAddress++];
+                    }
+                }
+                windowPosition += size;
+            }
+        }
+
+        if (windowPosition != windowLength) {
+            throw new CodePushInvalidUpdateException("VCDIFF window is shorter than its declared length.");
+        }
+
+        if (expectedChecksum >= 0) {
+            Adler32 checksum = new Adler32();
+            checksum.update(window, 0, windowLength);
+            if (checksum.getValue() != expectedChecksum) {
+                throw new CodePushInvalidUpdateException("VCDIFF window failed its checksum.");
+            }
+        }
+
+        target.seek(targetPosition);
+        target.write(window, 0, windowLength);
+        if (messageDigest != null) messageDigest.update(window, 0, windowLength);
+        return windowLength;
+    }
+
+    private static int[][] buildDefaultCodeTable() {
+        int[][] table = new int[256][];
+        int index = 0;
+        table[index++] = new int[]{RUN, 0, 0, NOOP, 0, 0};
+        for (int size = 0; size <= 17; size++) {
+            table[index++] = new int[]{ADD, size, 0, NOOP, 0, 0};
+        }
+        for (int mode = 0; mode <= 8; mode++) {
+            table[index++] = new int[]{COPY, 0, mode, NOOP, 0, 0};
+            for (int size = 4; size <= 18; size++) {
+                table[index++] = new int[]{COPY, size, mode, NOOP, 0, 0};
+            }
+        }
+        for (int mode = 0; mode <= 8; mode++) {
+            int maxCopySize = mode < FIRST_SAME_MODE ? 6 : 4;
+            for (int addSize = 1; addSize <= 4; addSize++) {
+                for (int copySize = 4; copySize <= maxCopySize; copySize++) {
+                    table[index++] = new int[]{ADD, addSize, 0, COPY, copySize, mode};
+                }
+            }
+        }
+        for (int mode = 0; mode <= 8; mode++) {
+            table[index++] = new int[]{COPY, 4, mode, ADD, 1, 0};
+        }
+        return table;
+    }
+
+    private static int readInt(DataInputStream delta) throws IOException {
+        long value = readLong(delta);
+        if (value > Integer.MAX_VALUE) {
+            throw new CodePushInvalidUpdateException("VCDIFF integer is out of range.");
+        }
+        return (int) value;
+    }
+
+    // Reads a variable length integer: 7 bits per byte, most significant first, with the high
+    // bit set on every byte but the last.
+    private static long readLong(DataInputStream delta) throws IOException {
+        long value = 0;
+        for (int i = 0; i < 9; i++) {
+            int nextByte = delta.readUnsignedByte();
+            value = (value << 7) | (nextByte & 0x7F);
+            if ((nextByte & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new CodePushInvalidUpdateException("VCDIFF integer is out of range.");
+    }
+
+    private static void skipFully(DataInputStream delta, int length) throws IOException {
+        while (length > 0) {
+            int skipped = delta.skipBytes(length);
+            if (skipped <= 0) {
+                throw new EOFException();
+            }
+            length -= skipped;
+        }
+    }
+
+    // One of the data, instructions and addresses sections of a window.
+    private static class Section {
+        private final byte[] mBytes;
+        private int mPosition = 0;
+
+        Section(DataInputStream delta, int length) throws IOException {
+            mBytes = new byte[length];
+            delta.readFully(mBytes);
+        }
+
+        boolean hasRemaining() {
+            return mPosition < mBytes.length;
+        }
+
+        int readByte() {
+            checkRemaining(1);
+            return mBytes[mPosition++] & 0xFF;
+        }
+
+        void read(byte[] destination, int offset, int length) {
+            checkRemaining(length);
+            System.arraycopy(mBytes, mPosition, destination, offset, length);
+            mPosition += length;
+        }
+
+        int readInt() {
+            long value = 0;
+            for (int i = 0; i < 5; i++) {
+                int nextByte = readByte();
+                value = (value << 7) | (nextByte & 0x7F);
+                if ((nextByte & 0x80) == 0) {
+                    if (value > Integer.MAX_VALUE) break;
+                    return (int) value;
+                }
+            }
+            throw new CodePushInvalidUpdateException("VCDIFF integer is out of range.");
+        }
+
+        private void checkRemaining(int length) {
+            if (length > mBytes.length - mPosition) {
+                throw new CodePushInvalidUpdateException("VCDIFF window section is truncated.");
+            }
+        }
+    }
+
+    // Reads the segment a window copies from, one block at a time, as copies tend to be small and close together.
+    private static class SegmentReader {
+        private final RandomAccessFile mFile;
+        private final long mPosition;
+        private final byte[] mBlock;
+        private long mBlockStart = -1;
+        private int mBlockLength = 0;
+
+        SegmentReader(RandomAccessFile file, long position, int length) {
+            mFile = file;
+            mPosition = position;
+            mBlock = new byte[Math.min(length, SEGMENT_BLOCK_SIZE)];
+        }
+
+        void read(long address, byte[] destination, int offset, int length) throws IOException {
+            while (length > 0) {
+                long filePosition = mPosition + address;
+                if (mBlockStart < 0 || filePosition < mBlockStart || filePosition >= mBlockStart + mBlockLength) {
+                    mFile.seek(filePosition);
+                    mBlockLength = mFile.read(mBlock, 0, mBlock.length);
+                    if (mBlockLength <= 0) {
+                        throw new EOFException();
+                    }
+                    mBlockStart = filePosition;
+                }
+
+                int blockOffset = (int) (filePosition - mBlockStart);
+                int count = Math.min(length, mBlockLength - blockOffset);
+                System.arraycopy(mBlock, blockOffset, destination, offset, count);
+                address += count;
+                offset += count;
+                length -= count;
+            }
+        }
+    }
+}
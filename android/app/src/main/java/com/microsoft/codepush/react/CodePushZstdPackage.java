@@ -0,0 +1,330 @@
+package com.microsoft.codepush.react;
+
+import android.util.JsonReader;
+
+import com.github.luben.zstd.ZstdInputStream;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+// Package container that compresses every file as its own zstd frame, optionally with a
+// dictionary trained on JS bundles, and lists them in an index placed before the data, so that
+// any file can be extracted on its own and all of them in parallel. It is written by
+// scripts/generateZstdPackage.js. Decoding needs the zstd-jni library, which apps that are
+// served this container add to their dependencies.
+//
+// Layout, with big-endian integers: the magic "CPZS", the format version, the dictionary length
+// and the index length as 4 byte integers, then the dictionary, the UTF-8 JSON index
+// {"files": [{"path", "offset", "compressedSize", "size", "hash"}, ...]} whose offsets are
+// relative to the end of the index, and finally the frames.
+class CodePushZstdPackage {
+
+    public static final int MAGIC = 0x43505A53;
+
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 16;
+    private static final int WRITE_BUFFER_SIZE = 1024 * 64;
+    // The dictionary and index are read into memory, so their size is bounded.
+    private static final int MAX_METADATA_SIZE = 1024 * 1024 * 16;
+
+    private final File mPackageFile;
+    private final byte[] mDictionary;
+    private final long mDataOffset;
+    private final List<Entry> mEntries;
+
+    private static class Entry {
+        String path;
+        long offset = -1;
+        long compressedSize = -1;
+        long size = -1;
+        String hash;
+    }
+
+    private CodePushZstdPackage(File packageFile, byte[] dictionary, long dataOffset, List<Entry> entries) {
+        mPackageFile = packageFile;
+        mDictionary = dictionary;
+        mDataOffset = dataOffset;
+        mEntries = entries;
+    }
+
+    public static boolean isSupported() {
+        try {
+            Class.forName("com.github.luben.zstd.ZstdInputStream");
+            return true;
+        } catch (ClassNotFoundException e) {
+            return false;
+        }
+    }
+
+    // Reads the header, dictionary and index of the package, checking that every frame lies
+    // within the file.
+    public static CodePushZstdPackage open(File packageFile) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(packageFile, "r");
+        try {
+            if (randomAccessFile.length() < HEADER_SIZE || randomAccessFile.readInt() != MAGIC) {
+                throw new CodePushInvalidUpdateException("Update is not a zstd package.");
+            }
+
+            int version = randomAccessFile.readInt();
+            int dictionaryLength = randomAccessFile.readInt();
+            int indexLength = randomAccessFile.readInt();
+            if (version != VERSION) {
+                throw new CodePushInvalidUpdateException("Unsupported zstd package version " + version + ".");
+            } else if (dictionaryLength < 0 || indexLength < 0 || dictionaryLength > MAX_METADATA_SIZE || indexLength > MAX_METADATA_SIZE
+                    || HEADER_SIZE + (long) dictionaryLength + indexLength > randomAccessFile.length()) {
+                throw new CodePushInvalidUpdateException("The zstd package header is corrupted.");
+            }
+
+            byte[] dictionary = new byte[dictionaryLength];
+            randomAccessFile.readFully(dictionary);
+            byte[] index = new byte[indexLength];
+            randomAccessFile.readFully(index);
+            long dataOffset = HEADER_SIZE + (long) dictionaryLength + indexLength;
+
+            List<Entry> entries = readIndex(index);
+            long dataLength = randomAccessFile.length() - dataOffset;
+            for (Entry entry : entries) {
+                if (entry.offset > dataLength || entry.compressedSize > dataLength - entry.offset) {
+                    throw new CodePushInvalidUpdateException("The data of " + entry.path + " lies outside the zstd package.");
+                }
+            }
+            return new CodePushZstdPackage(packageFile, dictionaryLength > 0 ? dictionary : null, dataOffset, entries);
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    private static List<Entry> readIndex(byte[] index) throws IOException {
+        List<Entry> entries = new ArrayList<>();
+        JsonReader reader = new JsonReader(new InputStreamReader(new ByteArrayInputStream(index), "UTF-8"));
+        try {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if (!reader.nextName().equals("files")) {
+                    reader.skipValue();
+                    continue;
+                }
+
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    Entry entry = new Entry();
+                    reader.beginObject();
+                    while (reader.hasNext()) {
+                        String name = reader.nextName();
+                        if (name.equals("path")) {
+                            entry.path = reader.nextString();
+                        } else if (name.equals("offset")) {
+                            entry.offset = reader.nextLong();
+                        } else if (name.equals("compressedSize")) {
+                            entry.compressedSize = reader.nextLong();
+                        } else if (name.equals("size")) {
+                            entry.size = reader.nextLong();
+                        } else if (name.equals("hash")) {
+                            entry.hash = reader.nextString();
+                        } else {
+                            reader.skipValue();
+                        }
+                    }
+                    reader.endObject();
+
+                    if (entry.path == null || entry.hash == null || entry.offset < 0 || entry.compressedSize < 0 || entry.size < 0) {
+                        throw new CodePushInvalidUpdateException("The zstd package index lists an incomplete file.");
+                    }
+                    entries.add(entry);
+                }
+                reader.endArray();
+            }
+            reader.endObject();
+        } catch (IllegalStateException | NumberFormatException e) {
+            throw new CodePushInvalidUpdateException("The zstd package index is malformed: " + e.getMessage());
+        } finally {
+            reader.close();
+        }
+        return entries;
+    }
+
+    // The size of the files once extracted, as listed in the index.
+    public long getExtractedSize() {
+        long extractedSize = 0;
+        for (Entry entry : mEntries) {
+            extractedSize += entry.size;
+        }
+        return extractedSize;
+    }
+
+    // Extracts every file into the destination, replacing its previous contents, and records
+    // their hashes in the manifest, if one is given. Each file is checked against the size and
+    // hash of the index. Files that the reusable manifest recorded with the same hash are taken
+    // from its package instead.
+    public void extract(String destination, final CodePushPackageManifest manifest,
+                        CodePushPackageManifest reusableManifest) throws IOException {
+        if (!isSupported()) {
+            throw new CodePushUnknownException("Update is a zstd package, which needs the com.github.luben:zstd-jni library.");
+        }
+
+        File destinationFolder = new File(destination);
+        if (destinationFolder.exists()) {
+            FileUtils.deleteFileOrFolderSilently(destinationFolder);
+        }
+        destinationFolder.mkdirs();
+
+        // Every path is validated and its folder created before any file is written.
+        final List<Entry> extractedEntries = new ArrayList<>();
+        final List<File> files = new ArrayList<>();
+        Set<String> filePaths = new HashSet<>();
+        for (Entry entry : mEntries) {
+            String filePath = FileUtils.validateFileName(entry.path, destinationFolder);
+            if (!filePaths.add(filePath)) {
+                // Files are extracted concurrently, so each must be written by a single worker.
+                throw new CodePushInvalidUpdateException("The zstd package index lists " + entry.path + " twice.");
+            }
+
+            File file = new File(filePath);
+            file.getParentFile().mkdirs();
+            if (!reuseFile(entry, file, manifest, reusableManifest)) {
+                extractedEntries.add(entry);
+                files.add(file);
+            }
+        }
+
+        long startTime = System.currentTimeMillis();
+        ExecutorService executor = FileUtils.getFileWorkerPool();
+        List<Future<Void>> extractions = new ArrayList<>();
+        for (int i = 0; i < extractedEntries.size(); i++) {
+            final int entryIndex = i;
+            extractions.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws IOException {
+                    extractFile(extractedEntries.get(entryIndex), files.get(entryIndex), manifest);
+                    return null;
+                }
+            }));
+        }
+        FileUtils.awaitAll(extractions);
+
+        CodePushUtils.log("Extracted " + extractedEntries.size() + " of " + mEntries.size() + " files from the zstd package, "
+                + (System.currentTimeMillis() - startTime) + " ms");
+    }
+
+    private void extractFile(Entry entry, File file, CodePushPackageManifest manifest) throws IOException {
+        FileInputStream fileStream = new FileInputStream(mPackageFile);
+        InputStream frameStream = null;
+        try {
+            fileStream.getChannel().position(mDataOffset + entry.offset);
+            frameStream = new BoundedInputStream(fileStream, entry.compressedSize);
+            ZstdInputStream zstdStream = new ZstdInputStream(frameStream);
+            frameStream = zstdStream;
+            if (mDictionary != null) {
+                zstdStream.setDict(mDictionary);
+            }
+
+            MessageDigest messageDigest = CodePushUpdateUtils.createHashDigest();
+            long fileSize = FileUtils.writeEntry(zstdStream, file, messageDigest, new byte[WRITE_BUFFER_SIZE]);
+            String hash = CodePushUpdateUtils.formatHash(messageDigest.digest());
+            if (fileSize != entry.size || !hash.equals(entry.hash)) {
+                throw new CodePushInvalidUpdateException("The contents of " + entry.path + " do not match the zstd package index.");
+            }
+
+            if (manifest != null) {
+                manifest.put(entry.path, hash, -1, fileSize);
+            }
+        } finally {
+            try {
+                if (frameStream != null) frameStream.close();
+                fileStream.close();
+            } catch (IOException e) {
+                throw new CodePushUnknownException("Error closing IO resources.", e);
+            }
+        }
+    }
+
+    private static boolean reuseFile(Entry entry, File file, CodePushPackageManifest manifest,
+                                     CodePushPackageManifest reusableManifest) throws IOException {
+        if (reusableManifest == null || !entry.hash.equals(reusableManifest.get(entry.path))) {
+            return false;
+        }
+
+        File reusableFile = new File(reusableManifest.getPackageFolderPath(), entry.path);
+        if (!reusableFile.isFile() || reusableFile.length() != entry.size) {
+            return false;
+        }
+
+        if (CodePush.isHardLinkingEnabled()) {
+            FileUtils.linkFile(reusableFile, file);
+        } else {
+            FileUtils.copyFile(reusableFile, file);
+        }
+
+        if (manifest != null) {
+            manifest.putFrom(reusableManifest, entry.path);
+        }
+        return true;
+    }
+
+    // Reads no more than the given number of bytes, so that the decoder stops at the end of its frame.
+    private static class BoundedInputStream extends FilterInputStream {
+        private long mRemaining;
+
+        BoundedInputStream(InputStream in, long length) {
+            super(in);
+            mRemaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (mRemaining <= 0) {
+                return -1;
+            }
+
+            int b = super.read();
+            if (b >= 0) {
+                mRemaining--;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (mRemaining <= 0) {
+                return -1;
+            }
+
+            int numBytesRead = super.read(buffer, offset, (int) Math.min(length, mRemaining));
+            if (numBytesRead > 0) {
+                mRemaining -= numBytesRead;
+            }
+            return numBytesRead;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(Math.min(n, mRemaining));
+            mRemaining -= skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(super.available(), mRemaining);
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+    }
+}
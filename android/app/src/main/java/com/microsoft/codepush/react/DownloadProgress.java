@@ -14,7 +14,7 @@ class DownloadProgress {
 
     public WritableMap createWritableMap() {
         WritableMap map = new WritableNativeMap();
-        if (mTotalBytes < Integer.MAX_VALUE) {
+        if (mTotalBytes < Integer.MAX_VALUE && mReceivedBytes < Integer.MAX_VALUE) {
             map.putInt("totalBytes", (int) mTotalBytes);
             map.putInt("receivedBytes", (int) mReceivedBytes);
         } else {
@@ -24,7 +24,12 @@ class DownloadProgress {
         return map;
     }
 
+    // The total is -1 while the download length is unknown, e.g. for chunked responses.
+    public boolean isIndeterminate() {
+        return mTotalBytes < 0;
+    }
+
     public boolean isCompleted() {
-        return mTotalBytes == mReceivedBytes;
+        return !isIndeterminate() && mTotalBytes == mReceivedBytes;
     }
 }
@@ -1,55 +1,237 @@
 package com.microsoft.codepush.react;
 
+import android.os.Build;
+
 import java.io.BufferedInputStream;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.PrintWriter;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 import java.util.zip.ZipInputStream;
 
 public class FileUtils {
 
     private static final int WRITE_BUFFER_SIZE = 1024 * 8;
+    private static final int FAST_EXTRACTION_BUFFER_SIZE = 1024 * 64;
+    // Copies of fewer files than this are not worth handing to a thread pool.
+    private static final int PARALLEL_COPY_MIN_FILE_COUNT = 16;
+    // Files at least this large are copied on the calling thread.
+    private static final long PARALLEL_COPY_MAX_FILE_SIZE = 1024 * 1024;
+    // Flash storage stops gaining from concurrent file operations beyond a few threads.
+    private static final int MAX_FILE_WORKER_COUNT = 4;
+
+    private static ExecutorService sFileWorkerPool;
 
     public static void copyDirectoryContents(String sourceDirectoryPath, String destinationDirectoryPath) throws IOException {
-        File sourceDir = new File(sourceDirectoryPath);
-        File destDir = new File(destinationDirectoryPath);
-        if (!destDir.exists()) {
-            destDir.mkdir();
+        // Create the whole directory tree up front, so the file copies need no directory checks.
+        List<File[]> filesToCopy = new ArrayList<>();
+        createDirectoryTree(new File(sourceDirectoryPath), new File(destinationDirectoryPath), "", null, filesToCopy);
+        copyFiles(filesToCopy);
+    }
+
+    // Copies, or hard links, the files of the source directory that the destination directory
+    // does not have yet, except for the given paths relative to the source directory.
+    public static void mergeDirectoryContents(String sourceDirectoryPath, String destinationDirectoryPath,
+                                              Set<String> excludedRelativePaths, boolean isLinking) throws IOException {
+        List<File[]> filesToMerge = new ArrayList<>();
+        createDirectoryTree(new File(sourceDirectoryPath), new File(destinationDirectoryPath), "", excludedRelativePaths, filesToMerge);
+        if (isLinking) {
+            linkFiles(filesToMerge);
+        } else {
+            copyFiles(filesToMerge);
         }
+    }
 
+    // Creates the directories of the source tree in the destination and lists the files to
+    // transfer. When excluded paths are given, files the destination already has are skipped too.
+    private static void createDirectoryTree(File sourceDir, File destDir, String pathPrefix,
+                                            Set<String> excludedRelativePaths, List<File[]> filesToTransfer) {
+        destDir.mkdir();
         for (File sourceFile : sourceDir.listFiles()) {
+            File destFile = new File(destDir, sourceFile.getName());
+            String relativePath = (pathPrefix.isEmpty() ? "" : (pathPrefix + "/")) + sourceFile.getName();
             if (sourceFile.isDirectory()) {
-                copyDirectoryContents(
-                        CodePushUtils.appendPathComponent(sourceDirectoryPath, sourceFile.getName()),
-                        CodePushUtils.appendPathComponent(destinationDirectoryPath, sourceFile.getName()));
+                createDirectoryTree(sourceFile, destFile, relativePath, excludedRelativePaths, filesToTransfer);
+            } else if (excludedRelativePaths == null
+                    || (!excludedRelativePaths.contains(relativePath) && !destFile.exists())) {
+                filesToTransfer.add(new File[]{sourceFile, destFile});
+            }
+        }
+    }
+
+    private static void copyFiles(List<File[]> filesToCopy) throws IOException {
+        if (filesToCopy.size() < PARALLEL_COPY_MIN_FILE_COUNT) {
+            for (File[] fileToCopy : filesToCopy) {
+                copyFile(fileToCopy[0], fileToCopy[1]);
+            }
+            return;
+        }
+
+        // Small files are dominated by open and close latency, so copy them concurrently while
+        // the calling thread copies the large ones.
+        List<Callable<Void>> smallFileCopies = new ArrayList<>();
+        List<File[]> largeFilesToCopy = new ArrayList<>();
+        for (final File[] fileToCopy : filesToCopy) {
+            if (fileToCopy[0].length() >= PARALLEL_COPY_MAX_FILE_SIZE) {
+                largeFilesToCopy.add(fileToCopy);
             } else {
-                File destFile = new File(destDir, sourceFile.getName());
-                FileInputStream fromFileStream = null;
-                BufferedInputStream fromBufferedStream = null;
-                FileOutputStream destStream = null;
-                byte[] buffer = new byte[WRITE_BUFFER_SIZE];
-                try {
-                    fromFileStream = new FileInputStream(sourceFile);
-                    fromBufferedStream = new BufferedInputStream(fromFileStream);
-                    destStream = new FileOutputStream(destFile);
-                    int bytesRead;
-                    while ((bytesRead = fromBufferedStream.read(buffer)) > 0) {
-                        destStream.write(buffer, 0, bytesRead);
-                    }
-                } finally {
-                    try {
-                        if (fromFileStream != null) fromFileStream.close();
-                        if (fromBufferedStream != null) fromBufferedStream.close();
-                        if (destStream != null) destStream.close();
-                    } catch (IOException e) {
-                        throw new CodePushUnknownException("Error closing IO resources.", e);
+                smallFileCopies.add(new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException {
+                        copyFile(fileToCopy[0], fileToCopy[1]);
+                        return null;
                     }
+                });
+            }
+        }
+
+        ExecutorService executor = getFileWorkerPool();
+        List<Future<Void>> copies = new ArrayList<>();
+        try {
+            for (Callable<Void> smallFileCopy : smallFileCopies) {
+                copies.add(executor.submit(smallFileCopy));
+            }
+            for (File[] fileToCopy : largeFilesToCopy) {
+                copyFile(fileToCopy[0], fileToCopy[1]);
+            }
+        } catch (IOException | RuntimeException e) {
+            cancelAll(copies);
+            throw e;
+        }
+        awaitAll(copies);
+    }
+
+    private static void linkFiles(List<File[]> filesToLink) throws IOException {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            copyFiles(filesToLink);
+            return;
+        }
+
+        for (File[] fileToLink : filesToLink) {
+            linkFile(fileToLink[0], fileToLink[1]);
+        }
+    }
+
+    // Hard links the file, or copies it where linking is not possible.
+    static void linkFile(File sourceFile, File destFile) throws IOException {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            copyFile(sourceFile, destFile);
+            return;
+        }
+
+        if (destFile.exists()) {
+            destFile.delete();
+        }
+
+        try {
+            CodePushPosix.link(sourceFile.getPath(), destFile.getPath());
+        } catch (IOException e) {
+            CodePushUtils.log("Unable to link " + sourceFile.getName() + ", copying it instead " + e.getMessage());
+            copyFile(sourceFile, destFile);
+        }
+    }
+
+    // Shared by all parallel file operations. Its tasks never wait for other tasks of the pool,
+    // so that concurrent operations cannot deadlock it.
+    static synchronized ExecutorService getFileWorkerPool() {
+        if (sFileWorkerPool == null) {
+            int workerCount = Math.max(1, Math.min(MAX_FILE_WORKER_COUNT, Runtime.getRuntime().availableProcessors()));
+            sFileWorkerPool = Executors.newFixedThreadPool(workerCount, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "CodePushFileWorker");
+                    thread.setDaemon(true);
+                    return thread;
                 }
+            });
+        }
+        return sFileWorkerPool;
+    }
+
+    // Waits for every task, rethrowing the failure of the first one that failed after cancelling
+    // the others, so that the pool does not keep working for an operation that already failed.
+    static void awaitAll(List<Future<Void>> tasks) throws IOException {
+        boolean isCompleted = false;
+        try {
+            for (Future<Void> task : tasks) {
+                task.get();
+            }
+            isCompleted = true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CodePushUnknownException("Interrupted while waiting for file operations.", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new CodePushUnknownException("File operation failed.", cause);
+        } finally {
+            if (!isCompleted) {
+                cancelAll(tasks);
+            }
+        }
+    }
+
+    private static void cancelAll(List<Future<Void>> tasks) {
+        for (Future<Void> task : tasks) {
+            task.cancel(true);
+        }
+    }
+
+    static void copyFile(File sourceFile, File destFile) throws IOException {
+        // The destination may be a hard link into another package, which must not be modified,
+        // so write a new file instead of overwriting the shared one.
+        if (destFile.exists()) {
+            destFile.delete();
+        }
+
+        FileInputStream fromFileStream = null;
+        FileOutputStream destStream = null;
+        try {
+            fromFileStream = new FileInputStream(sourceFile);
+            destStream = new FileOutputStream(destFile);
+            // transferTo lets the kernel copy the data without it passing through the Java heap.
+            FileChannel fromChannel = fromFileStream.getChannel();
+            FileChannel destChannel = destStream.getChannel();
+            long size = fromChannel.size();
+            long position = 0;
+            while (position < size) {
+                long bytesTransferred = fromChannel.transferTo(position, size - position, destChannel);
+                if (bytesTransferred <= 0) {
+                    throw new IOException("Unable to copy " + sourceFile.getName() + ", stopped at " + position + " of " + size + " bytes.");
+                }
+                position += bytesTransferred;
+            }
+        } finally {
+            try {
+                if (fromFileStream != null) fromFileStream.close();
+                if (destStream != null) destStream.close();
+            } catch (IOException e) {
+                throw new CodePushUnknownException("Error closing IO resources.", e);
             }
         }
     }
@@ -123,7 +305,7 @@ public class FileUtils {
         }
     }
 
-    private static String validateFileName(String fileName, File destinationFolder) throws IOException {
+    static String validateFileName(String fileName, File destinationFolder) throws IOException {
         String destinationFolderCanonicalPath = destinationFolder.getCanonicalPath() + File.separator;
 
         File file = new File(destinationFolderCanonicalPath, fileName);
@@ -137,6 +319,13 @@ public class FileUtils {
     }
 
     public static void unzipFile(File zipFile, String destination) throws IOException {
+        unzipFile(zipFile, destination, null, null);
+    }
+
+    // Also records the hash of every extracted file in the manifest, if one is given. Entries
+    // that the reusable manifest recorded with the same CRC-32 and size are taken from its package.
+    static void unzipFile(File zipFile, String destination, CodePushPackageManifest manifest,
+                          CodePushPackageManifest reusableManifest) throws IOException {
         FileInputStream fileStream = null;
         BufferedInputStream bufferedStream = null;
         ZipInputStream zipStream = null;
@@ -144,51 +333,369 @@ public class FileUtils {
             fileStream = new FileInputStream(zipFile);
             bufferedStream = new BufferedInputStream(fileStream);
             zipStream = new ZipInputStream(bufferedStream);
-            ZipEntry entry;
+            unzipStream(zipStream, destination, manifest, reusableManifest);
+        } finally {
+            try {
+                if (zipStream != null) zipStream.close();
+                if (bufferedStream != null) bufferedStream.close();
+                if (fileStream != null) fileStream.close();
+            } catch (IOException e) {
+                throw new CodePushUnknownException("Error closing IO resources.", e);
+            }
+        }
+    }
+
+    // Extracts every entry of the stream into the destination, replacing its previous contents.
+    // The stream is left open so that callers reading from the network can consume the rest of it.
+    // The hash of every extracted file is recorded in the manifest, if one is given. Entries that
+    // the reusable manifest recorded with the same CRC-32 and size are taken from its package.
+    static void unzipStream(ZipInputStream zipStream, String destination, CodePushPackageManifest manifest,
+                            CodePushPackageManifest reusableManifest) throws IOException {
+        ZipEntry entry;
 
+        File destinationFolder = new File(destination);
+        if (destinationFolder.exists()) {
+            deleteFileOrFolderSilently(destinationFolder);
+        }
+
+        destinationFolder.mkdirs();
+        ExtractionTarget target = new ExtractionTarget(destinationFolder, CodePush.isFastExtractionEnabled());
+        MessageDigest messageDigest = manifest != null ? CodePushUpdateUtils.createHashDigest() : null;
+        boolean isRestoringFileTimes = CodePush.isRestoreFileTimesEnabled();
+
+        byte[] buffer = new byte[target.isFast() ? FAST_EXTRACTION_BUFFER_SIZE : WRITE_BUFFER_SIZE];
+        while ((entry = zipStream.getNextEntry()) != null) {
+            String relativePath = target.resolve(entry.getName(), entry.isDirectory());
+            File file = target.getFile(relativePath);
+            if (!entry.isDirectory()) {
+                // The CRC-32 and size are only known up front for entries without a data descriptor.
+                if (reuseEntry(entry, file, relativePath, manifest, reusableManifest)) {
+                    continue;
+                }
+
+                long fileSize = writeEntry(zipStream, file, messageDigest, buffer);
+                if (manifest != null) {
+                    manifest.put(relativePath, CodePushUpdateUtils.formatHash(messageDigest.digest()), entry.getCrc(), fileSize);
+                }
+            }
+            long time = entry.getTime();
+            if (isRestoringFileTimes && time > 0) {
+                file.setLastModified(time);
+            }
+        }
+    }
+
+    // Extracts the archive from its central directory, inflating independent entries concurrently.
+    // All entry names are validated and the directory tree is created before any file is written.
+    // The hash of every extracted file is recorded in the manifest, if one is given. Entries that
+    // the reusable manifest recorded with the same CRC-32 and size are taken from its package.
+    static void unzipFileInParallel(File zipFile, String destination, final CodePushPackageManifest manifest,
+                                    final CodePushPackageManifest reusableManifest) throws IOException {
+        final ZipFile archive = new ZipFile(zipFile);
+        try {
             File destinationFolder = new File(destination);
             if (destinationFolder.exists()) {
                 deleteFileOrFolderSilently(destinationFolder);
             }
 
             destinationFolder.mkdirs();
+            ExtractionTarget target = new ExtractionTarget(destinationFolder, CodePush.isFastExtractionEnabled());
+            boolean isRestoringFileTimes = CodePush.isRestoreFileTimesEnabled();
+            final int bufferSize = target.isFast() ? FAST_EXTRACTION_BUFFER_SIZE : WRITE_BUFFER_SIZE;
 
-            byte[] buffer = new byte[WRITE_BUFFER_SIZE];
-            while ((entry = zipStream.getNextEntry()) != null) {
-                String fileName = validateFileName(entry.getName(), destinationFolder);
-                File file = new File(fileName);
+            // Only the last of several entries with the same name is extracted, as it is the one
+            // left on disk by sequential extraction, and no two workers write the same file.
+            Map<String, ZipEntry> lastFileEntries = new LinkedHashMap<>();
+            Enumeration<? extends ZipEntry> entries = archive.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                String relativePath = target.resolve(entry.getName(), entry.isDirectory());
                 if (entry.isDirectory()) {
+                    long time = entry.getTime();
+                    if (isRestoringFileTimes && time > 0) {
+                        target.getFile(relativePath).setLastModified(time);
+                    }
+                } else {
+                    lastFileEntries.remove(relativePath);
+                    lastFileEntries.put(relativePath, entry);
+                }
+            }
+
+            final List<ZipEntry> fileEntries = new ArrayList<>();
+            final List<File> files = new ArrayList<>();
+            final List<String> relativePaths = new ArrayList<>();
+            for (Map.Entry<String, ZipEntry> lastFileEntry : lastFileEntries.entrySet()) {
+                String relativePath = lastFileEntry.getKey();
+                ZipEntry entry = lastFileEntry.getValue();
+                File file = target.getFile(relativePath);
+                if (!reuseEntry(entry, file, relativePath, manifest, reusableManifest)) {
+                    fileEntries.add(entry);
+                    files.add(file);
+                    relativePaths.add(relativePath);
+                }
+            }
+
+            if (fileEntries.size() < PARALLEL_COPY_MIN_FILE_COUNT) {
+                byte[] buffer = new byte[bufferSize];
+                for (int i = 0; i < fileEntries.size(); i++) {
+                    extractEntry(archive, fileEntries.get(i), files.get(i), relativePaths.get(i), manifest, buffer);
+                }
+                return;
+            }
+
+            ExecutorService executor = getFileWorkerPool();
+            List<Future<Void>> extractions = new ArrayList<>();
+            for (int i = 0; i < fileEntries.size(); i++) {
+                final int entryIndex = i;
+                extractions.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException {
+                        extractEntry(archive, fileEntries.get(entryIndex), files.get(entryIndex), relativePaths.get(entryIndex),
+                                manifest, new byte[bufferSize]);
+                        return null;
+                    }
+                }));
+            }
+            awaitAll(extractions);
+        } finally {
+            archive.close();
+        }
+    }
+
+    private static void extractEntry(ZipFile archive, ZipEntry entry, File file, String relativePath,
+                                     CodePushPackageManifest manifest, byte[] buffer) throws IOException {
+        MessageDigest messageDigest = manifest != null ? CodePushUpdateUtils.createHashDigest() : null;
+        InputStream entryStream = archive.getInputStream(entry);
+        long fileSize;
+        try {
+            fileSize = writeEntry(entryStream, file, messageDigest, buffer);
+        } finally {
+            try {
+                entryStream.close();
+            } catch (IOException e) {
+                throw new CodePushUnknownException("Error closing IO resources.", e);
+            }
+        }
+
+        if (manifest != null) {
+            manifest.put(relativePath, CodePushUpdateUtils.formatHash(messageDigest.digest()), entry.getCrc(), fileSize);
+        }
+        long time = entry.getTime();
+        if (CodePush.isRestoreFileTimesEnabled() && time > 0) {
+            file.setLastModified(time);
+        }
+    }
+
+    // Writes the entry data to the file, filling the buffer before every write because inflater
+    // streams tend to return much less than was asked for. Returns the number of bytes written.
+    static long writeEntry(InputStream entryStream, File file, MessageDigest messageDigest, byte[] buffer) throws IOException {
+        long fileSize = 0;
+        FileOutputStream fout = new FileOutputStream(file);
+        try {
+            int bufferedBytes = 0;
+            int numBytesRead;
+            while ((numBytesRead = entryStream.read(buffer, bufferedBytes, buffer.length - bufferedBytes)) != -1) {
+                bufferedBytes += numBytesRead;
+                if (bufferedBytes == buffer.length) {
+                    fout.write(buffer, 0, bufferedBytes);
+                    if (messageDigest != null) messageDigest.update(buffer, 0, bufferedBytes);
+                    fileSize += bufferedBytes;
+                    bufferedBytes = 0;
+                }
+            }
+
+            if (bufferedBytes > 0) {
+                fout.write(buffer, 0, bufferedBytes);
+                if (messageDigest != null) messageDigest.update(buffer, 0, bufferedBytes);
+                fileSize += bufferedBytes;
+            }
+        } finally {
+            fout.close();
+        }
+        return fileSize;
+    }
+
+    // Resolves zip entry names to files in the extraction folder and creates their directories.
+    // The regular mode checks every name with validateFileName, which canonicalizes both paths
+    // and so resolves each path component on disk. The fast mode normalizes names lexically and
+    // checks them against the folder canonicalized once, and it remembers which directories it
+    // created. The fast mode is the stricter one: it rejects any name that leaves the folder at
+    // some point, e.g. "../staging/x", which the canonical check accepts if it ends up back inside.
+    // Every name it accepts resolves within the folder, as the folder is created empty before
+    // extraction and extraction never creates symbolic links.
+    private static class ExtractionTarget {
+        private final File mFolder;
+        private final File mCanonicalFolder;
+        private final int mCanonicalFolderPathLength;
+        private final boolean mIsFast;
+        private final Set<String> mCreatedFolders = new HashSet<>();
+
+        ExtractionTarget(File folder, boolean isFast) throws IOException {
+            mFolder = folder;
+            mCanonicalFolder = folder.getCanonicalFile();
+            mCanonicalFolderPathLength = mCanonicalFolder.getPath().length() + 1;
+            mIsFast = isFast;
+        }
+
+        boolean isFast() {
+            return mIsFast;
+        }
+
+        // Returns the path of the entry relative to the folder, with "/" separators, after making
+        // sure that the entry directory, or the directory that holds the entry file, exists.
+        String resolve(String entryName, boolean isDirectory) throws IOException {
+            if (!mIsFast) {
+                String fileName = validateFileName(entryName, mFolder);
+                File file = new File(fileName);
+                if (isDirectory) {
                     file.mkdirs();
                 } else {
                     File parent = file.getParentFile();
                     if (!parent.exists()) {
                         parent.mkdirs();
                     }
+                }
+                return fileName.substring(mCanonicalFolderPathLength).replace(File.separatorChar, '/');
+            }
+
+            String relativePath = normalize(entryName);
+            if (relativePath.isEmpty() && !isDirectory) {
+                throw new IllegalStateException("File is outside extraction target directory.");
+            }
 
-                    FileOutputStream fout = new FileOutputStream(file);
-                    try {
-                        int numBytesRead;
-                        while ((numBytesRead = zipStream.read(buffer)) != -1) {
-                            fout.write(buffer, 0, numBytesRead);
-                        }
-                    } finally {
-                        fout.close();
+            if (isDirectory) {
+                createFolder(relativePath);
+            } else {
+                int parentEnd = relativePath.lastIndexOf('/');
+                if (parentEnd > 0) {
+                    createFolder(relativePath.substring(0, parentEnd));
+                }
+            }
+            return relativePath;
+        }
+
+        File getFile(String relativePath) {
+            return new File(mCanonicalFolder, relativePath);
+        }
+
+        private void createFolder(String relativePath) {
+            if (!relativePath.isEmpty() && mCreatedFolders.add(relativePath)) {
+                new File(mCanonicalFolder, relativePath).mkdirs();
+            }
+        }
+
+        private static String normalize(String entryName) {
+            if (entryName.startsWith("/")) {
+                throw new IllegalStateException("File is outside extraction target directory.");
+            }
+
+            ArrayList<String> segments = new ArrayList<>();
+            for (String segment : entryName.split("/")) {
+                if (segment.isEmpty() || segment.equals(".")) {
+                    continue;
+                }
+
+                if (segment.equals("..")) {
+                    if (segments.isEmpty()) {
+                        throw new IllegalStateException("File is outside extraction target directory.");
                     }
+                    segments.remove(segments.size() - 1);
+                } else {
+                    segments.add(segment);
                 }
-                long time = entry.getTime();
-                if (time > 0) {
-                    file.setLastModified(time);
+            }
+
+            StringBuilder relativePath = new StringBuilder(entryName.length());
+            for (String segment : segments) {
+                if (relativePath.length() > 0) {
+                    relativePath.append('/');
                 }
+                relativePath.append(segment);
             }
-        } finally {
-            try {
-                if (zipStream != null) zipStream.close();
-                if (bufferedStream != null) bufferedStream.close();
-                if (fileStream != null) fileStream.close();
-            } catch (IOException e) {
-                throw new CodePushUnknownException("Error closing IO resources.", e);
+            return relativePath.toString();
+        }
+    }
+
+    // Links or copies the file from the package of the reusable manifest instead of extracting it,
+    // if that package holds a file extracted from an entry with the same CRC-32 and size.
+    private static boolean reuseEntry(ZipEntry entry, File file, String relativePath, CodePushPackageManifest manifest,
+                                      CodePushPackageManifest reusableManifest) throws IOException {
+        if (reusableManifest == null || !reusableManifest.hasEntry(relativePath, entry.getCrc(), entry.getSize())) {
+            return false;
+        }
+
+        File reusableFile = new File(reusableManifest.getPackageFolderPath(), relativePath);
+        if (!reusableFile.isFile()) {
+            return false;
+        }
+
+        if (CodePush.isHardLinkingEnabled()) {
+            linkFile(reusableFile, file);
+        } else {
+            copyFile(reusableFile, file);
+        }
+
+        if (manifest != null) {
+            manifest.putReused(reusableManifest, relativePath);
+        }
+        return true;
+    }
+
+    // Flushes the files of the tree that the install wrote to storage, so that renaming the
+    // directory afterwards cannot expose files whose contents were never written. Files with
+    // other hard links were linked from an installed package, whose files are durable already,
+    // so they are skipped. This is done before their blobs are added, which links them too.
+    public static void syncWrittenFiles(String directoryPath) throws IOException {
+        for (File file : new File(directoryPath).listFiles()) {
+            if (file.isDirectory()) {
+                syncWrittenFiles(file.getPath());
+            } else if (!isLinked(file)) {
+                FileInputStream fileStream = new FileInputStream(file);
+                try {
+                    fileStream.getFD().sync();
+                } finally {
+                    fileStream.close();
+                }
+            }
+        }
+    }
+
+    // Flushes the directory entries of the tree, once no more files are added or replaced.
+    public static void syncDirectories(String directoryPath) {
+        File directory = new File(directoryPath);
+        for (File file : directory.listFiles()) {
+            if (file.isDirectory()) {
+                syncDirectories(file.getPath());
             }
         }
+
+        syncDirectory(directory);
+    }
+
+    // Without the link count, which needs Android 5.0, every file is taken to be unlinked.
+    private static boolean isLinked(File file) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            return false;
+        }
+
+        try {
+            return CodePushPosix.stat(file.getPath()).linkCount > 1;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    // Directory entries can only be flushed through a raw descriptor, which needs Android 5.0.
+    public static void syncDirectory(File directory) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            return;
+        }
+
+        try {
+            CodePushPosix.fsyncDirectory(directory.getPath());
+        } catch (IOException e) {
+            CodePushUtils.log("Unable to sync directory " + directory.getName() + " " + e.getMessage());
+        }
     }
 
     public static void writeStringToFile(String content, String filePath) throws IOException {
@@ -200,4 +707,23 @@ public class FileUtils {
             if (out != null) out.close();
         }
     }
+
+    // Writes to a temporary sibling first and renames it over the target, so readers see
+    // either the old or the new content but never a truncated file.
+    public static void writeStringToFileAtomically(String content, String filePath) throws IOException {
+        File targetFile = new File(filePath);
+        File tempFile = new File(filePath + ".tmp");
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(tempFile);
+            out.write(content.getBytes("UTF-8"));
+            out.getFD().sync();
+        } finally {
+            if (out != null) out.close();
+        }
+
+        if (!tempFile.renameTo(targetFile)) {
+            throw new IOException("Unable to move " + tempFile.getAbsolutePath() + " to " + filePath);
+        }
+    }
 }
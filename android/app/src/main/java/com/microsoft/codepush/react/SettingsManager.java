@@ -170,4 +170,37 @@ public class SettingsManager {
         }
     }
 
+    // Returns whether the files of the binary with the given hash matched its manifest, or null
+    // if they were not checked yet.
+    public Boolean getBinaryDiffBaseVerification(String binaryHash) {
+        String binaryDiffBaseString = mSettings.getString(CodePushConstants.BINARY_DIFF_BASE_KEY, null);
+        if (binaryDiffBaseString == null) {
+            return null;
+        }
+
+        try {
+            JSONObject binaryDiffBase = new JSONObject(binaryDiffBaseString);
+            if (!binaryDiffBase.getString(CodePushConstants.BINARY_DIFF_BASE_HASH_KEY).equals(binaryHash)) {
+                return null;
+            }
+            return binaryDiffBase.getBoolean(CodePushConstants.BINARY_DIFF_BASE_IS_VERIFIED_KEY);
+        } catch (JSONException e) {
+            CodePushUtils.log("Unable to parse binary diff base verification " + binaryDiffBaseString +
+                    " stored in SharedPreferences");
+            return null;
+        }
+    }
+
+    public void saveBinaryDiffBaseVerification(String binaryHash, boolean isVerified) {
+        JSONObject binaryDiffBase = new JSONObject();
+        try {
+            binaryDiffBase.put(CodePushConstants.BINARY_DIFF_BASE_HASH_KEY, binaryHash);
+            binaryDiffBase.put(CodePushConstants.BINARY_DIFF_BASE_IS_VERIFIED_KEY, isVerified);
+            mSettings.edit().putString(CodePushConstants.BINARY_DIFF_BASE_KEY, binaryDiffBase.toString()).commit();
+        } catch (JSONException e) {
+            // Should not happen.
+            throw new CodePushUnknownException("Unable to save binary diff base verification.", e);
+        }
+    }
+
 }
@@ -0,0 +1,62 @@
+package com.microsoft.codepush.react;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+// Copies everything read from the wrapped stream to a branch output stream, and counts it.
+class TeeInputStream extends FilterInputStream {
+
+    private final OutputStream mBranch;
+    private long mCount = 0;
+
+    public TeeInputStream(InputStream in, OutputStream branch) {
+        super(in);
+        mBranch = branch;
+    }
+
+    public long getCount() {
+        return mCount;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int value = super.read();
+        if (value >= 0) {
+            if (mBranch != null) mBranch.write(value);
+            mCount++;
+        }
+        return value;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        int numBytesRead = super.read(buffer, offset, length);
+        if (numBytesRead > 0) {
+            if (mBranch != null) mBranch.write(buffer, offset, numBytesRead);
+            mCount += numBytesRead;
+        }
+        return numBytesRead;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        // Skipped bytes must still reach the branch, so read them instead.
+        byte[] buffer = new byte[(int) Math.min(n, 1024 * 8)];
+        long skipped = 0;
+        while (skipped < n) {
+            int numBytesRead = read(buffer, 0, (int) Math.min(buffer.length, n - skipped));
+            if (numBytesRead < 0) {
+                break;
+            }
+            skipped += numBytesRead;
+        }
+        return skipped;
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+}
@@ -0,0 +1,42 @@
+/*
+ * This script writes the block signature of a file, for diff updates that list the file in the
+ * "syncedFiles" of their diff manifest. The Android client looks for the blocks of the file in the
+ * version it has installed and fetches only the missing ones from the full file with Range requests.
+ *
+ * Usage: node generateBlockSignature.js <file> <signatureFile> [blockSize]
+ *
+ * For every block the signature holds an rsync style weak checksum, a + 65536 * b, where a is the
+ * sum of the bytes X[0..n-1] of the block and b the sum of (n - i) * X[i], both modulo 65536, and
+ * the SHA-256 of the block.
+ */
+
+var crypto = require("crypto");
+var fs = require("fs");
+
+var HASH_ALGORITHM = "sha256";
+var DEFAULT_BLOCK_SIZE = 4096;
+
+var filePath = process.argv[2];
+var signatureFilePath = process.argv[3];
+var blockSize = parseInt(process.argv[4], 10) || DEFAULT_BLOCK_SIZE;
+
+var contents = fs.readFileSync(filePath);
+var blocks = [];
+for (var start = 0; start < contents.length; start += blockSize) {
+    var block = contents.subarray(start, Math.min(start + blockSize, contents.length));
+    var a = 0;
+    var b = 0;
+    for (var i = 0; i < block.length; i++) {
+        a = (a + block[i]) % 65536;
+        b = (b + (block.length - i) * block[i]) % 65536;
+    }
+
+    blocks.push([a + 65536 * b, crypto.createHash(HASH_ALGORITHM).update(block).digest("hex")]);
+}
+
+fs.writeFileSync(signatureFilePath, JSON.stringify({
+    blockSize: blockSize,
+    size: contents.length,
+    hash: crypto.createHash(HASH_ALGORITHM).update(contents).digest("hex"),
+    blocks: blocks
+}));
@@ -9,6 +9,8 @@
  * out which files were generated by the "react-native bundle" command. It then computes
  * the hash for each file to generate a manifest, and then computes a hash over the entire
  * manifest to generate the final hash, which is saved to the APK's assets directory.
+ * The manifest itself is saved next to it, so that diff updates released against the
+ * binary's contents can be applied on the device.
  */
 
 var crypto = require("crypto");
@@ -20,6 +22,7 @@ var getFilesInFolder = require("./getFilesInFolder");
 var CODE_PUSH_FOLDER_PREFIX = "CodePush";
 var CODE_PUSH_HASH_FILE_NAME = "CodePushHash";
 var CODE_PUSH_HASH_OLD_FILE_NAME = "CodePushHash.json";
+var CODE_PUSH_MANIFEST_FILE_NAME = "CodePushManifest";
 var HASH_ALGORITHM = "sha256";
 
 var resourcesDir = process.argv[2];
@@ -80,6 +83,14 @@ function addJsBundleAndMetaToManifest() {
             var savedResourcesManifestPath = assetsDir + "/" + CODE_PUSH_HASH_FILE_NAME;
             fs.writeFileSync(savedResourcesManifestPath, finalHash);
 
+            // Maps the path of every file to its hash, in the same form as the manifest entries.
+            var fileHashes = {};
+            manifest.forEach(function(manifestEntry) {
+                var separatorIndex = manifestEntry.lastIndexOf(":");
+                fileHashes[manifestEntry.substring(0, separatorIndex)] = manifestEntry.substring(separatorIndex + 1);
+            });
+            fs.writeFileSync(assetsDir + "/" + CODE_PUSH_MANIFEST_FILE_NAME, JSON.stringify(fileHashes));
+
             // "CodePushHash.json" file name breaks flow type checking.
             // To fix the issue we need to delete "CodePushHash.json" file and
             // use "CodePushHash" file name instead to store the hash value.
@@ -0,0 +1,67 @@
+/*
+ * This script packs the contents of an update folder into the zstd package container, which the
+ * Android client extracts faster than a zip and in parallel. Every file is compressed as its own
+ * zstd frame and listed in an index that precedes the data. Compression uses the "zstd" command
+ * line tool, so it must be on the PATH, and the app must depend on com.github.luben:zstd-jni.
+ *
+ * Usage: node generateZstdPackage.js <updateFolder> <packageFile> [dictionaryFile]
+ *
+ * A dictionary trained on earlier bundles, e.g. with "zstd --train bundles/* -o dictionary",
+ * is embedded in the package and used for every file.
+ *
+ * Layout, with big-endian integers: the magic "CPZS", the format version, the dictionary length
+ * and the index length as 4 byte integers, then the dictionary, the UTF-8 JSON index
+ * {"files": [{"path", "offset", "compressedSize", "size", "hash"}, ...]} whose offsets are
+ * relative to the end of the index, and finally the frames.
+ */
+
+var childProcess = require("child_process");
+var crypto = require("crypto");
+var fs = require("fs");
+var path = require("path");
+
+var getFilesInFolder = require("./getFilesInFolder");
+
+var MAGIC = "CPZS";
+var VERSION = 1;
+var COMPRESSION_LEVEL = "-19";
+var HASH_ALGORITHM = "sha256";
+
+var updateFolder = process.argv[2];
+var packageFilePath = process.argv[3];
+var dictionaryFilePath = process.argv[4];
+
+var dictionary = dictionaryFilePath ? fs.readFileSync(dictionaryFilePath) : Buffer.alloc(0);
+var files = [];
+getFilesInFolder(updateFolder, files);
+
+var index = { files: [] };
+var frames = [];
+var offset = 0;
+files.forEach(function(file) {
+    var contents = fs.readFileSync(file.path);
+    var zstdArgs = ["-q", COMPRESSION_LEVEL, "-c", file.path];
+    if (dictionaryFilePath) {
+        zstdArgs.unshift("-D", dictionaryFilePath);
+    }
+    var frame = childProcess.execFileSync("zstd", zstdArgs, { maxBuffer: Infinity });
+
+    index.files.push({
+        path: path.relative(updateFolder, file.path).split(path.sep).join("/"),
+        offset: offset,
+        compressedSize: frame.length,
+        size: contents.length,
+        hash: crypto.createHash(HASH_ALGORITHM).update(contents).digest("hex")
+    });
+    frames.push(frame);
+    offset += frame.length;
+});
+
+var indexBuffer = Buffer.from(JSON.stringify(index), "utf8");
+var header = Buffer.alloc(16);
+header.write(MAGIC, 0, "ascii");
+header.writeUInt32BE(VERSION, 4);
+header.writeUInt32BE(dictionary.length, 8);
+header.writeUInt32BE(indexBuffer.length, 12);
+
+fs.writeFileSync(packageFilePath, Buffer.concat([header, dictionary, indexBuffer].concat(frames)));
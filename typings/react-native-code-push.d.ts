@@ -12,7 +12,8 @@ export interface CodePushOptions extends SyncOptions {
 
 export interface DownloadProgress {
     /**
-     * The total number of bytes expected to be received for this update.
+     * The total number of bytes expected to be received for this update,
+     * or -1 while the size is unknown (e.g. for a streamed, compressed download).
      */
     totalBytes: number;
 